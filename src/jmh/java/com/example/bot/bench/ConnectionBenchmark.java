@@ -0,0 +1,155 @@
+package com.example.bot.bench;
+
+import com.example.bot.db.Database;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Цена одного обращения к базе до и после долгоживущих соединений.
+ * perCall* — прежний путь: DriverManager.getConnection и prepare на каждый вызов, база в журнале
+ * по умолчанию (rollback journal), как её вёл старый Database. cached* — нынешний {@link Database}:
+ * соединения в WAL и кэш подготовленных запросов. У вариантов свои файлы с одинаковыми пользователями.
+ * Запуск: java -jar target/benchmarks.jar ConnectionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+    // схема и запросы старого Database, до перехода на долгоживущие соединения
+    private static final String LEGACY_SCHEMA = "CREATE TABLE users (" +
+            "chat_id INTEGER PRIMARY KEY," +
+            "username TEXT," +
+            "first_name TEXT," +
+            "last_name TEXT," +
+            "is_admin INTEGER DEFAULT 0," +
+            "tag TEXT DEFAULT 'basic'," +
+            "subscription_end TEXT," +
+            "subscription_active INTEGER DEFAULT 0," +
+            "monthly_end TEXT," +
+            "monthly_active INTEGER DEFAULT 0," +
+            "created_at TEXT," +
+            "updated_at TEXT" +
+            ")";
+    // точечное чтение по ключу: тот же запрос, что у Database.pageUserChatIds
+    private static final String LEGACY_PAGE_SQL = "SELECT chat_id FROM users WHERE chat_id>? ORDER BY chat_id LIMIT ?";
+    private static final String LEGACY_UPSERT_SQL =
+            "INSERT INTO users(chat_id, username, first_name, last_name, is_admin, created_at, updated_at) " +
+            "VALUES(?,?,?,?,?,?,?) " +
+            "ON CONFLICT(chat_id) DO UPDATE SET " +
+            "username=excluded.username, " +
+            "first_name=excluded.first_name, " +
+            "last_name=excluded.last_name, " +
+            "is_admin=excluded.is_admin, " +
+            "updated_at=excluded.updated_at";
+
+    @Param({"1000", "100000"})
+    public int users;
+
+    private Path dir;
+    private String legacyUrl;
+    private Database db;
+    private final SplittableRandom random = new SplittableRandom(11);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("connection-bench");
+
+        Path legacy = dir.resolve("legacy.db");
+        legacyUrl = "jdbc:sqlite:" + legacy;
+        try (Connection c = DriverManager.getConnection(legacyUrl); Statement st = c.createStatement()) {
+            st.execute(LEGACY_SCHEMA);
+            st.execute("CREATE INDEX idx_users_sub_end ON users(subscription_end)");
+        }
+        fill(legacyUrl);
+
+        Path current = dir.resolve("current.db");
+        db = new Database(current.toString());
+        db.init();
+        fill("jdbc:sqlite:" + current);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long perCallRead() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(legacyUrl);
+             PreparedStatement ps = conn.prepareStatement(LEGACY_PAGE_SQL)) {
+            ps.setLong(1, nextChatId() - 1);
+            ps.setInt(2, 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] cachedRead() {
+        return db.pageUserChatIds(nextChatId() - 1, 1);
+    }
+
+    @Benchmark
+    public int perCallUpsert() throws SQLException {
+        long chatId = nextChatId();
+        String now = java.time.OffsetDateTime.now().toString();
+        try (Connection conn = DriverManager.getConnection(legacyUrl);
+             PreparedStatement ps = conn.prepareStatement(LEGACY_UPSERT_SQL)) {
+            ps.setLong(1, chatId);
+            ps.setString(2, "user" + chatId);
+            ps.setString(3, "Name");
+            ps.setString(4, null);
+            ps.setInt(5, 0);
+            ps.setString(6, now);
+            ps.setString(7, now);
+            return ps.executeUpdate();
+        }
+    }
+
+    @Benchmark
+    public void cachedUpsert() {
+        long chatId = nextChatId();
+        db.upsertUser(chatId, "user" + chatId, "Name", null, false);
+    }
+
+    private long nextChatId() {
+        return 1 + random.nextInt(users);
+    }
+
+    /**
+     * Одни и те же пользователи в обеих базах: только колонки, которые есть в любой версии схемы.
+     */
+    private void fill(String url) throws SQLException {
+        try (Connection c = DriverManager.getConnection(url);
+             PreparedStatement ps = c.prepareStatement("INSERT INTO users(chat_id, username, first_name) VALUES(?,?,?)")) {
+            c.setAutoCommit(false);
+            for (int i = 1; i <= users; i++) {
+                ps.setLong(1, i);
+                ps.setString(2, "user" + i);
+                ps.setString(3, "Name");
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            c.commit();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.bot.bench;
+
+import com.example.bot.db.Database;
+import com.example.bot.db.Database.ReminderTransition;
+import com.example.bot.db.SubscriptionState;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Горячие пути {@link Database} на фикстурах от 1k до 1M пользователей.
+ * Запуск: java -jar target/benchmarks.jar DatabaseBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final int CLAIM_BATCH = 500;
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private Database db;
+    private long[] claimIds;
+    private final AtomicInteger claimDay = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Rnd {
+        final SplittableRandom random = new SplittableRandom(42);
+
+        long chatId(int users) {
+            return UserFixture.chatId(1 + random.nextInt(users));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        db = new Database(UserFixture.create(users).toString());
+        db.init();
+        claimIds = new long[Math.min(CLAIM_BATCH, users)];
+        for (int i = 0; i < claimIds.length; i++) claimIds[i] = UserFixture.chatId(i + 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    @Benchmark
+    public void upsertUser(Rnd rnd) {
+        long chatId = rnd.chatId(users);
+        db.upsertUser(chatId, "user" + chatId, "Name" + rnd.random.nextInt(4), null, false);
+    }
+
+    /**
+     * Профиль с апдейта без изменений: после первого вызова на чат записи нет.
+     */
+    @Benchmark
+    public void saveUserUnchanged(Rnd rnd) {
+        long chatId = rnd.chatId(users);
+        db.saveUser(chatId, "user" + chatId, "Same", null, false);
+    }
+
+    /**
+     * Случайные чаты: на больших фикстурах часть запросов промахивается мимо кэша.
+     */
+    @Benchmark
+    public SubscriptionState getSubscriptionState(Rnd rnd) {
+        return db.getSubscriptionState(rnd.chatId(users));
+    }
+
+    @Benchmark
+    public List<Database.DueDate> findYearSubsEndingWeek() {
+        return db.findYearSubsEndingBetween(UserFixture.BASE_DAY, UserFixture.BASE_DAY.plusDays(7));
+    }
+
+    @Benchmark
+    public List<Database.DueDate> findMonthSubsEndingWeek() {
+        return db.findMonthSubsEndingBetween(UserFixture.BASE_DAY, UserFixture.BASE_DAY.plusDays(7));
+    }
+
+    /**
+     * Захват пачки напоминаний; каждый вызов — новый день, так что все вставки свежие.
+     */
+    @Benchmark
+    public long[] claimRemindersBatch() {
+        LocalDate day = UserFixture.BASE_DAY.plusDays(claimDay.incrementAndGet());
+        return db.claimReminders("BENCH", day, claimIds, ReminderTransition.NONE);
+    }
+}
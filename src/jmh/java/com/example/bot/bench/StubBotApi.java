@@ -0,0 +1,64 @@
+package com.example.bot.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Локальная заглушка Bot API для бенчмарков транспорта.
+ * На любой метод через latencyMs отвечает успешным sendMessage — задержка изображает RTT до api.telegram.org.
+ * Встроенный HttpServer говорит только HTTP/1.1.
+ */
+public final class StubBotApi implements AutoCloseable {
+    private static final byte[] OK = ("{\"ok\":true,\"result\":{\"message_id\":1,\"date\":0," +
+            "\"chat\":{\"id\":1,\"type\":\"private\"}}}").getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final int latencyMs;
+
+    private StubBotApi(int latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public static StubBotApi start(int latencyMs) throws IOException {
+        return new StubBotApi(latencyMs);
+    }
+
+    /** Базовый адрес для DefaultBotOptions#setBaseUrl: дальше библиотека дописывает токен и метод. */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange; InputStream in = exchange.getRequestBody()) {
+            in.readAllBytes();
+            if (latencyMs > 0) Thread.sleep(latencyMs);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, OK.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(OK);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
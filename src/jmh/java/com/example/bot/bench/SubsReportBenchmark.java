@@ -0,0 +1,61 @@
+package com.example.bot.bench;
+
+import com.example.bot.SubsReport;
+import com.example.bot.db.Database;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Страница /subs: keyset-выборка с произвольного места и рендер текста; renderOnly — только {@link SubsReport}.
+ * Запуск: java -jar target/benchmarks.jar SubsReportBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubsReportBenchmark {
+    private static final int PAGE_SIZE = 20;
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    private Database db;
+    private List<Database.SubscriberRow> page;
+    private final SplittableRandom random = new SplittableRandom(7);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        db = new Database(UserFixture.create(users).toString());
+        db.init();
+        page = db.pageActiveSubscribers(null, 0, false, PAGE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+    }
+
+    @Benchmark
+    public String firstPage() {
+        List<Database.SubscriberRow> rows = db.pageActiveSubscribers(null, 0, false, PAGE_SIZE);
+        return SubsReport.renderPage(rows, 1);
+    }
+
+    @Benchmark
+    public String pageFromRandomKey() {
+        LocalDate key = UserFixture.BASE_DAY.plusDays(random.nextInt(365));
+        List<Database.SubscriberRow> rows = db.pageActiveSubscribers(key, 0, false, PAGE_SIZE);
+        return rows.isEmpty() ? "" : SubsReport.renderPage(rows, 1);
+    }
+
+    @Benchmark
+    public String renderOnly() {
+        return SubsReport.renderPage(page, 1);
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.bot.bench;
+
+import com.example.bot.HttpTransport;
+import org.openjdk.jmh.annotations.*;
+import org.telegram.telegrambots.bots.DefaultAbsSender;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Транспорт библиотеки (Apache HttpClient) против {@link HttpTransport} на локальной {@link StubBotApi}.
+ * Операция — пачка BURST sendMessage, не больше inFlight запросов в полёте (как у TelegramBot.sendAsync);
+ * результат в сообщениях в секунду. Заглушка отвечает по HTTP/1.1, так что здесь видна разница
+ * пулов соединений; мультиплексирование HTTP/2 проявляется только с настоящим API.
+ * Запуск: java -jar target/benchmarks.jar TransportBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int BURST = 256;
+
+    @Param({"library", "jdk"})
+    public String transport;
+
+    @Param({"32"})
+    public int inFlight;
+
+    @Param({"20"})
+    public int latencyMs;
+
+    private StubBotApi api;
+    private LibrarySender library;
+    private HttpTransport jdk;
+    private Semaphore permits;
+
+    /** Транспорт библиотеки без бота: только DefaultAbsSender с адресом заглушки. */
+    static final class LibrarySender extends DefaultAbsSender {
+        LibrarySender(DefaultBotOptions options) {
+            super(options, "TOKEN");
+        }
+
+        void close() {
+            exe.shutdownNow();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        api = StubBotApi.start(latencyMs);
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl(api.baseUrl());
+        options.setMaxThreads(inFlight);
+        library = new LibrarySender(options);
+        jdk = new HttpTransport(library.getBaseUrl(), 2, Duration.ofSeconds(5), Duration.ofSeconds(30));
+        permits = new Semaphore(inFlight);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        library.close();
+        api.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void sendBurst() throws Exception {
+        CompletableFuture<?>[] sends = new CompletableFuture<?>[BURST];
+        for (int i = 0; i < BURST; i++) {
+            permits.acquire();
+            sends[i] = send(i + 1).whenComplete((r, e) -> permits.release());
+        }
+        CompletableFuture.allOf(sends).join();
+    }
+
+    private CompletableFuture<Message> send(long chatId) throws TelegramApiException {
+        SendMessage message = SendMessage.builder()
+                .chatId(Long.toString(chatId))
+                .text("⏰ Через 3 дня заканчивается оплаченный месяц вашей подписки.")
+                .build();
+        return transport.equals("jdk") ? jdk.execute(message) : library.executeAsync(message);
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.bot.bench;
+
+import com.example.bot.db.Database;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+/**
+ * Файлы SQLite с заданным числом пользователей для бенчмарков.
+ * Создаются один раз в java.io.tmpdir и переиспользуются между запусками.
+ */
+public final class UserFixture {
+    /** «Сегодня» для фикстур: сроки подписок разложены вокруг этого дня. */
+    public static final LocalDate BASE_DAY = LocalDate.of(2030, 1, 1);
+
+    private static final int INSERT_BATCH = 10_000;
+
+    private UserFixture() {}
+
+    public static Path create(int users) throws Exception {
+        Path path = Path.of(System.getProperty("java.io.tmpdir"), "itigris-bench-" + users + ".db");
+        if (Files.exists(path) && countUsers(path) == users) return path;
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            Files.deleteIfExists(Path.of(path + suffix));
+        }
+
+        // схему и индексы создаёт сам Database
+        Database db = new Database(path.toString());
+        db.init();
+        db.close();
+
+        String sql = "INSERT INTO users(chat_id, username, first_name, last_name, is_admin, tag, " +
+                "subscription_end_day, subscription_active, monthly_end_day, monthly_active, created_at_ms, updated_at_ms) " +
+                "VALUES(?,?,?,?,0,'basic',?,?,?,?,?,?)";
+        long base = BASE_DAY.toEpochDay();
+        long now = System.currentTimeMillis();
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + path)) {
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                for (int i = 1; i <= users; i++) {
+                    // 80% с годовой подпиской, из них половина с оплаченным месяцем
+                    boolean year = i % 5 != 0;
+                    boolean month = year && i % 2 == 0;
+                    ps.setLong(1, chatId(i));
+                    ps.setString(2, "user" + i);
+                    ps.setString(3, "First" + i);
+                    ps.setString(4, null);
+                    ps.setLong(5, base + (i % 365));
+                    ps.setInt(6, year ? 1 : 0);
+                    ps.setLong(7, base + (i % 31));
+                    ps.setInt(8, month ? 1 : 0);
+                    ps.setLong(9, now);
+                    ps.setLong(10, now);
+                    ps.addBatch();
+                    if (i % INSERT_BATCH == 0) ps.executeBatch();
+                }
+                ps.executeBatch();
+            }
+            c.commit();
+        }
+        return path;
+    }
+
+    /**
+     * chat_id i-го пользователя фикстуры (i от 1): разреженные, как настоящие.
+     */
+    public static long chatId(int i) {
+        return 100_000_000L + i * 37L;
+    }
+
+    private static int countUsers(Path path) throws SQLException {
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + path);
+             Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM users")) {
+            return rs.next() ? rs.getInt(1) : -1;
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+}
@@ -1,38 +1,98 @@
 package com.example.bot;
 
 import com.example.bot.db.Database;
+import com.example.bot.metrics.MetricsServer;
 import com.example.bot.service.SubscriptionService;
 import com.example.bot.service.BroadcastService;
+import com.example.bot.service.SendThrottle;
 import com.example.bot.payment.PaymentService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.generics.BotSession;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 public class BotApp {
     private static final Logger log = LoggerFactory.getLogger(BotApp.class);
 
     public static void main(String[] args) {
         try {
             Env env = Env.load();
+            if (env.metricsPort() > 0) {
+                new MetricsServer(env.metricsHost(), env.metricsPort()).start();
+            }
             Database db = new Database(env.dbPath());
             db.init();
 
             TelegramBot bot = new TelegramBot(env, db);
-            SubscriptionService subscriptionService = new SubscriptionService(env, db, bot);
-            BroadcastService broadcastService = new BroadcastService(db, bot);
+            // журнал исходящих лежит рядом с базой
+            // общий лимит отправки под ограничения Telegram: рассылки, напоминания и повторы
+            SendThrottle throttle = new SendThrottle(env.broadcastRatePerSecond(), SendThrottle.DEFAULT_BURST);
+            Outbox outbox = new Outbox(Path.of(env.dbPath()).toAbsolutePath().resolveSibling("outbox.journal"),
+                    bot, throttle);
+            SubscriptionService subscriptionService = new SubscriptionService(env, db, bot, outbox, throttle);
+            BroadcastService broadcastService = new BroadcastService(env, db, bot, throttle);
             PaymentService paymentService = new PaymentService(env, db, bot);
 
             bot.setServices(subscriptionService, broadcastService, paymentService);
 
-            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-            botsApi.registerBot(bot);
-            log.info("Bot started as @{} (admins: {})", env.botUsername(), env.adminIds());
+            AtomicReference<Runnable> stopIntake = new AtomicReference<>(() -> {});
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(env, stopIntake.get(), bot,
+                    subscriptionService, broadcastService, outbox, db), "shutdown"));
+
+            // журнал открывается до приёма апдейтов: подтверждения оплат из первых апдейтов пишутся в него
+            outbox.replay();
+
+            if (env.webhookMode()) {
+                WebhookServer webhook = new WebhookServer(env, bot);
+                webhook.start();
+                webhook.register();
+                stopIntake.set(webhook::close);
+            } else {
+                TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+                BotSession session = botsApi.registerBot(bot);
+                stopIntake.set(session::stop);
+            }
+            log.info("Bot started as @{} in {} mode (admins: {})",
+                    env.botUsername(), env.webhookMode() ? "webhook" : "polling", env.adminIds());
 
             subscriptionService.startSchedulers();
+            broadcastService.resumePendingJobs();
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Один хук вместо нескольких: JVM запускает хуки параллельно, а здесь важен порядок —
+     * перестать принимать апдейты и доработать принятые, остановить напоминания и рассылки, дождаться исходящих
+     * до общего дедлайна SHUTDOWN_DRAIN_SECONDS и только потом закрыть базу.
+     */
+    private static void shutdown(Env env, Runnable stopIntake, TelegramBot bot, SubscriptionService subscriptionService,
+                                 BroadcastService broadcastService, Outbox outbox, Database db) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(env.shutdownDrainSeconds());
+        log.info("Shutting down, draining for up to {}s", env.shutdownDrainSeconds());
+        try {
+            stopIntake.run();
+        } catch (Exception e) {
+            log.warn("Stopping updates intake failed", e);
+        }
+        // принятые апдейты дорабатываются, пока сервисы и база ещё живы
+        bot.dispatcher().drain(left(deadline));
+        subscriptionService.stop(left(deadline));
+        broadcastService.stop(left(deadline));
+        outbox.drain(left(deadline));
+        // дописать отложенные профили и закрыть базу
+        db.close();
+    }
+
+    private static Duration left(long deadline) {
+        return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+    }
 }
@@ -0,0 +1,104 @@
+package com.example.bot;
+
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Защита кнопок оплаты от частых нажатий.
+ * Одинаковое действие чата, пока оно выполняется и ещё DEDUP_WINDOW после, схлопывается в уже запущенное;
+ * разные действия ограничены токен-бакетом на чат (BURST подряд, дальше по одному в REFILL).
+ */
+final class CallbackGuard {
+
+    enum Decision { RUN, DUPLICATE, THROTTLED }
+
+    private static final MetricFamily<Counter> DECISIONS =
+            Metrics.counter("callback_guard_total", "Guarded button taps by decision", "decision");
+
+    private static final int BURST = 3;
+    private static final long REFILL_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long DEDUP_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // действие, не отчитавшееся о завершении (потерянный future), не держит кнопку вечно
+    private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int PRUNE_THRESHOLD = 10_000;
+
+    private static final class Bucket {
+        double tokens = BURST;
+        long updatedNanos;
+
+        Bucket(long now) {
+            this.updatedNanos = now;
+        }
+    }
+
+    private static final class Action {
+        final long startedNanos;
+        volatile long finishedNanos;   // 0 — ещё выполняется
+
+        Action(long startedNanos) {
+            this.startedNanos = startedNanos;
+        }
+
+        boolean blocks(long now) {
+            long finished = finishedNanos;
+            if (finished == 0) return now - startedNanos < STALE_NANOS;
+            return now - finished < DEDUP_WINDOW_NANOS;
+        }
+    }
+
+    private record Key(long chatId, String action) {}
+
+    private final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, Action> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Решить, выполнять ли нажатие; при RUN действие считается запущенным до {@link #finish}.
+     */
+    Decision tryStart(long chatId, String action) {
+        long now = System.nanoTime();
+        Key key = new Key(chatId, action);
+        Decision decision;
+        Action running = inFlight.get(key);
+        if (running != null && running.blocks(now)) {
+            decision = Decision.DUPLICATE;
+        } else if (!takeToken(chatId, now)) {
+            decision = Decision.THROTTLED;
+        } else {
+            Action[] started = new Action[1];
+            inFlight.compute(key, (k, cur) -> {
+                if (cur != null && cur.blocks(now)) return cur;
+                return started[0] = new Action(now);
+            });
+            decision = started[0] != null ? Decision.RUN : Decision.DUPLICATE;
+        }
+        DECISIONS.get(decision.name().toLowerCase()).inc();
+        if (inFlight.size() > PRUNE_THRESHOLD || buckets.size() > PRUNE_THRESHOLD) prune(now);
+        return decision;
+    }
+
+    void finish(long chatId, String action) {
+        Action a = inFlight.get(new Key(chatId, action));
+        if (a != null) a.finishedNanos = System.nanoTime();
+    }
+
+    private boolean takeToken(long chatId, long now) {
+        Bucket b = buckets.computeIfAbsent(chatId, id -> new Bucket(now));
+        synchronized (b) {
+            b.tokens = Math.min(BURST, b.tokens + (double) (now - b.updatedNanos) / REFILL_NANOS);
+            b.updatedNanos = now;
+            if (b.tokens < 1) return false;
+            b.tokens -= 1;
+            return true;
+        }
+    }
+
+    private void prune(long now) {
+        inFlight.values().removeIf(a -> !a.blocks(now));
+        // за BURST * REFILL бакет наполняется целиком — такой можно забыть
+        buckets.values().removeIf(b -> now - b.updatedNanos > BURST * REFILL_NANOS);
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.bot;
 
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.util.Arrays;
 import java.util.Set;
@@ -12,9 +13,29 @@ public record Env(
         String providerToken,
         int priceYearRubKopeks,
         int priceMonthRubKopeks,
+        boolean invoiceLinks,
         int subscriptionDurationDays,
         String dbPath,
-        ZoneId zone
+        ZoneId zone,
+        LocalTime reminderTime,
+        int broadcastRatePerSecond,
+        boolean broadcastCopy,
+        long broadcastSourceChatId,
+        int outboundMaxInFlight,
+        boolean jdkTransport,
+        int httpConnections,
+        int httpConnectTimeoutMs,
+        int httpRequestTimeoutMs,
+        int updateStripes,
+        int shutdownDrainSeconds,
+        boolean webhookMode,
+        String webhookHost,
+        int webhookPort,
+        String webhookPath,
+        String webhookUrl,
+        String webhookSecret,
+        String metricsHost,
+        int metricsPort
 ) {
     public static Env load() {
         String botToken = getenvOrDefault("BOT_TOKEN", "123456:TEST_TOKEN_FROM_BOTFATHER");
@@ -24,10 +45,44 @@ public record Env(
 
         int priceYearRubKopeks = Integer.parseInt(getenvOrDefault("PRICE_RUB", "390000"));
         int priceMonthRubKopeks = Integer.parseInt(getenvOrDefault("PRICE_MONTH_RUB", "39000"));
+        // Счета: send — полный sendInvoice на каждый запрос, link — ссылка createInvoiceLink один раз на цену и URL-кнопка
+        boolean invoiceLinks = "link".equalsIgnoreCase(getenvOrDefault("INVOICE_MODE", "send"));
 
         int subscriptionDurationDays = Integer.parseInt(getenvOrDefault("SUBSCRIPTION_DURATION_DAYS", "365"));
         String dbPath = getenvOrDefault("DB_PATH", "/app/bot.db");
         String tz = getenvOrDefault("TIMEZONE", "Asia/Yekaterinburg");
+        // Во сколько по местному времени (TIMEZONE) приходят напоминания
+        LocalTime reminderTime = LocalTime.parse(getenvOrDefault("REMINDER_TIME", "10:00"));
+        // Лимит Telegram на рассылку ~30 сообщений в секунду на бота
+        int broadcastRatePerSecond = Integer.parseInt(getenvOrDefault("BROADCAST_RATE", "30"));
+        // Режим рассылки: send — собирать сообщение каждому заново, copy — один раз отправить в
+        // BROADCAST_SOURCE_CHAT_ID (по умолчанию чат админа) и раздать copyMessage(s) по message_id
+        boolean broadcastCopy = "copy".equalsIgnoreCase(getenvOrDefault("BROADCAST_MODE", "send"));
+        long broadcastSourceChatId = Long.parseLong(getenvOrDefault("BROADCAST_SOURCE_CHAT_ID", "0"));
+        // Сколько запросов к Bot API может быть в полёте одновременно
+        int outboundMaxInFlight = Integer.parseInt(getenvOrDefault("OUTBOUND_MAX_IN_FLIGHT", "32"));
+        // Транспорт Bot API: library — Apache HttpClient библиотеки (HTTP/1.1), jdk — java.net.http с HTTP/2
+        boolean jdkTransport = "jdk".equalsIgnoreCase(getenvOrDefault("TELEGRAM_TRANSPORT", "library"));
+        // Для jdk: число соединений (запросы мультиплексируются в каждом) и таймауты
+        int httpConnections = Integer.parseInt(getenvOrDefault("TELEGRAM_HTTP_CONNECTIONS", "2"));
+        int httpConnectTimeoutMs = Integer.parseInt(getenvOrDefault("TELEGRAM_CONNECT_TIMEOUT_MS", "10000"));
+        int httpRequestTimeoutMs = Integer.parseInt(getenvOrDefault("TELEGRAM_REQUEST_TIMEOUT_MS", "30000"));
+        // Число полос обработки апдейтов (чаты раскладываются по полосам по chat_id)
+        int updateStripes = Integer.parseInt(getenvOrDefault("UPDATE_STRIPES", "64"));
+        // Сколько секунд после SIGTERM дожидаться исходящих (docker stop даёт 10 с до SIGKILL)
+        int shutdownDrainSeconds = Integer.parseInt(getenvOrDefault("SHUTDOWN_DRAIN_SECONDS", "8"));
+        // Приём апдейтов: polling (по умолчанию) или webhook через встроенный HTTP-сервер
+        boolean webhookMode = "webhook".equalsIgnoreCase(getenvOrDefault("UPDATES_MODE", "polling"));
+        // по умолчанию только локально, за reverse proxy с TLS; 0.0.0.0 — если порт открыт наружу
+        String webhookHost = getenvOrDefault("WEBHOOK_HOST", "127.0.0.1");
+        int webhookPort = Integer.parseInt(getenvOrDefault("WEBHOOK_PORT", "8080"));
+        String webhookPath = getenvOrDefault("WEBHOOK_PATH", "/telegram");
+        String webhookUrl = getenvOrDefault("WEBHOOK_URL", null);
+        // обязателен в режиме webhook: без него любой, кто достучится до порта, подделает апдейт
+        String webhookSecret = getenvOrDefault("WEBHOOK_SECRET", null);
+        // /metrics в формате Prometheus; METRICS_PORT=0 — выключено
+        String metricsHost = getenvOrDefault("METRICS_HOST", "127.0.0.1");
+        int metricsPort = Integer.parseInt(getenvOrDefault("METRICS_PORT", "9464"));
 
         Set<Long> adminIds = Arrays.stream(admins.split(","))
                 .map(String::trim)
@@ -42,9 +97,29 @@ public record Env(
                 providerToken,
                 priceYearRubKopeks,
                 priceMonthRubKopeks,
+                invoiceLinks,
                 subscriptionDurationDays,
                 dbPath,
-                ZoneId.of(tz)
+                ZoneId.of(tz),
+                reminderTime,
+                broadcastRatePerSecond,
+                broadcastCopy,
+                broadcastSourceChatId,
+                outboundMaxInFlight,
+                jdkTransport,
+                httpConnections,
+                httpConnectTimeoutMs,
+                httpRequestTimeoutMs,
+                updateStripes,
+                shutdownDrainSeconds,
+                webhookMode,
+                webhookHost,
+                webhookPort,
+                webhookPath,
+                webhookUrl,
+                webhookSecret,
+                metricsHost,
+                metricsPort
         );
     }
 
@@ -0,0 +1,88 @@
+package com.example.bot;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiValidationException;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JSON-методы Bot API через {@link HttpClient} из JDK вместо Apache HttpClient библиотеки.
+ * HTTP/2: запросы мультиплексируются в соединении, а не ждут одного из пары соединений пула.
+ * Соединений столько, сколько клиентов (запросы раскладываются по кругу); число запросов
+ * в полёте ограничивает сам {@link TelegramBot}. Ответ разбирается так же, как в библиотеке —
+ * через {@link BotApiMethod#deserializeResponse}, поэтому ошибки и 429 выглядят одинаково.
+ * Multipart-загрузки (файлы) остаются на транспорте библиотеки.
+ */
+public final class HttpTransport {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String baseUrl;
+    private final Duration requestTimeout;
+    private final HttpClient[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param baseUrl адрес с токеном и завершающим слешем, как {@code DefaultAbsSender#getBaseUrl}
+     */
+    public HttpTransport(String baseUrl, int connections, Duration connectTimeout, Duration requestTimeout) {
+        this.baseUrl = baseUrl;
+        this.requestTimeout = requestTimeout;
+        this.clients = new HttpClient[Math.max(1, connections)];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(connectTimeout)
+                    .build();
+        }
+    }
+
+    public <T extends Serializable> CompletableFuture<T> execute(BotApiMethod<T> method) {
+        String body;
+        try {
+            method.validate();
+            body = MAPPER.writeValueAsString(method);
+        } catch (TelegramApiValidationException e) {
+            return CompletableFuture.failedFuture(e);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(
+                    new TelegramApiException("Unable to serialize " + method.getMethod() + " method", e));
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + method.getMethod()))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json; charset=utf-8")
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        client().sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                .whenComplete((response, e) -> {
+                    if (e != null) {
+                        result.completeExceptionally(new TelegramApiException(
+                                "Unable to execute " + method.getMethod() + " method", TelegramBot.unwrap(e)));
+                        return;
+                    }
+                    try {
+                        result.complete(method.deserializeResponse(response.body()));
+                    } catch (TelegramApiRequestException ex) {
+                        result.completeExceptionally(ex);
+                    }
+                });
+        return result;
+    }
+
+    private HttpClient client() {
+        return clients[Math.floorMod(next.getAndIncrement(), clients.length)];
+    }
+}
@@ -4,83 +4,77 @@ import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMa
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Статические клавиатуры собираются один раз и отдаются общими экземплярами — менять их нельзя.
+ */
 public class Keyboards {
 
-    public static InlineKeyboardMarkup startMenu() {
-        InlineKeyboardButton sub = InlineKeyboardButton.builder()
-                .text("📅 Моя подписка")
-                .callbackData("MY_SUBSCRIPTION")
-                .build();
+    private static final InlineKeyboardMarkup START_MENU = markup(
+            List.of(button("📅 Моя подписка", "MY_SUBSCRIPTION")),
+            List.of(button("💳 Оформить подписку", "BUY_SUBSCRIPTION")),
+            List.of(button("❌ Отменить подписку", "CANCEL_SUBSCRIPTION")));
 
-        InlineKeyboardButton buy = InlineKeyboardButton.builder()
-                .text("💳 Оформить подписку")
-                .callbackData("BUY_SUBSCRIPTION")
-                .build();
+    private static final InlineKeyboardMarkup CONFIRM_CANCEL = markup(
+            List.of(button("✅ Да", "CONFIRM_CANCEL_YES"), button("↩️ Нет", "CONFIRM_CANCEL_NO")));
 
-        InlineKeyboardButton cancel = InlineKeyboardButton.builder()
-                .text("❌ Отменить подписку")
-                .callbackData("CANCEL_SUBSCRIPTION")
-                .build();
+    private static final InlineKeyboardMarkup BACK_TO_MENU = markup(
+            List.of(button("⬅️ Вернуться в меню", "BACK_TO_MENU")));
 
-        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(Arrays.asList(sub));
-        rows.add(Arrays.asList(buy));
-        rows.add(Arrays.asList(cancel));
+    private static final InlineKeyboardMarkup BUY_YEAR = markup(
+            List.of(button("💳 Оформить годовую", "BUY_YEAR_SUBSCRIPTION")));
 
-        return InlineKeyboardMarkup.builder()
-                .keyboard(rows)
-                .build();
+    private static final InlineKeyboardMarkup BUY_MONTH = markup(
+            List.of(button("💳 Оплатить месяц 390 ₽", "BUY_MONTH_SUBSCRIPTION")));
+
+    public static InlineKeyboardMarkup startMenu() {
+        return START_MENU;
     }
 
     public static InlineKeyboardMarkup confirmCancel() {
-        InlineKeyboardButton yes = InlineKeyboardButton.builder()
-                .text("✅ Да")
-                .callbackData("CONFIRM_CANCEL_YES")
-                .build();
-
-        InlineKeyboardButton no = InlineKeyboardButton.builder()
-                .text("↩️ Нет")
-                .callbackData("CONFIRM_CANCEL_NO")
-                .build();
-
-        return InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(yes, no)))
-                .build();
+        return CONFIRM_CANCEL;
     }
 
     public static InlineKeyboardMarkup backToMenu() {
-        InlineKeyboardButton back = InlineKeyboardButton.builder()
-                .text("⬅️ Вернуться в меню")
-                .callbackData("BACK_TO_MENU")
-                .build();
-
-        return InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(back)))
-                .build();
+        return BACK_TO_MENU;
     }
 
     public static InlineKeyboardMarkup buyYearButton() {
-        InlineKeyboardButton buy = InlineKeyboardButton.builder()
-                .text("💳 Оформить годовую")
-                .callbackData("BUY_YEAR_SUBSCRIPTION")
-                .build();
+        return BUY_YEAR;
+    }
+
+    public static InlineKeyboardMarkup buyMonthButton() {
+        return BUY_MONTH;
+    }
 
+    /**
+     * Навигация по страницам /subs; null — кнопки нет.
+     */
+    public static InlineKeyboardMarkup subsPager(String prevData, String nextData) {
+        List<InlineKeyboardButton> row = new ArrayList<>(2);
+        if (prevData != null) row.add(button("⬅️ Назад", prevData));
+        if (nextData != null) row.add(button("Вперёд ➡️", nextData));
         return InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(buy)))
+                .keyboard(row.isEmpty() ? List.of() : List.of(List.copyOf(row)))
                 .build();
     }
 
-    public static InlineKeyboardMarkup buyMonthButton() {
-        InlineKeyboardButton buy = InlineKeyboardButton.builder()
-                .text("💳 Оплатить месяц 390 ₽")
-                .callbackData("BUY_MONTH_SUBSCRIPTION")
+    private static InlineKeyboardButton button(String text, String callbackData) {
+        return InlineKeyboardButton.builder()
+                .text(text)
+                .callbackData(callbackData)
                 .build();
+    }
 
+    @SafeVarargs
+    private static InlineKeyboardMarkup markup(List<InlineKeyboardButton>... rows) {
+        // без передачи rows дальше как массива: иначе javac предупреждает о heap pollution
+        List<List<InlineKeyboardButton>> keyboard = new ArrayList<>(rows.length);
+        for (List<InlineKeyboardButton> row : rows) keyboard.add(row);
+        // экземпляр общий на все ответы: неизменяемые и строки, и список строк
         return InlineKeyboardMarkup.builder()
-                .keyboard(List.of(List.of(buy)))
+                .keyboard(List.copyOf(keyboard))
                 .build();
     }
-}
\ No newline at end of file
+}
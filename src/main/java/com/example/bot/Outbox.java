@@ -0,0 +1,338 @@
+package com.example.bot;
+
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Metrics;
+import com.example.bot.service.SendThrottle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiValidationException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Исходящие, которые нельзя терять: напоминания и подтверждения оплат.
+ * Перед отправкой сообщение дописывается в журнал (append-only файл рядом с базой),
+ * после ответа Bot API — отметка о завершении. При остановке {@link #drain} ждёт отправок
+ * в полёте до дедлайна; всё неотмеченное отправляет {@link #replay} при следующем старте.
+ * Доставка «хотя бы один раз»: если ответ не успел прийти до остановки, сообщение уйдёт повторно.
+ * 429, 5xx и сетевые ошибки не закрывают запись — сообщение повторяется, пока не дойдёт.
+ * Повторы и досылка после старта идут через общий {@link SendThrottle}, 429 ставит его на паузу.
+ * <p>
+ * Формат строк: {@code +seq chat_id method tail} — поставлено, {@code -seq} — завершено.
+ * Запись без fsync: переживает остановку и падение процесса, но не отключение питания.
+ */
+public class Outbox {
+    private static final Logger log = LoggerFactory.getLogger(Outbox.class);
+
+    private static final Counter REPLAYED =
+            Metrics.counter("outbox_replayed_total", "Outbound messages resent from the journal after restart");
+    private static final Counter DEFERRED =
+            Metrics.counter("outbox_deferred_total", "Outbound messages left in the journal at shutdown");
+    private static final Counter RETRIES =
+            Metrics.counter("outbox_retries_total", "Outbound messages retried after 429, 5xx or network errors");
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // журнал обнуляется, когда все записи завершены и он перерос этот размер
+    private static final long COMPACT_BYTES = 1 << 20;
+
+    private record Entry(long chatId, PreparedMessage message) {}
+
+    private final Path file;
+    private final TelegramBot bot;
+    private final SendThrottle throttle;
+    private final Map<Long, Entry> unfinished = new LinkedHashMap<>();
+    private FileChannel channel;
+    private long nextSeq = 1;
+    private int inFlight;
+    private volatile boolean draining;
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Outbox(Path file, TelegramBot bot, SendThrottle throttle) {
+        this.file = file;
+        this.bot = bot;
+        this.throttle = throttle;
+        Metrics.gauge("outbox_pending", "Outbound messages journaled but not yet confirmed", this::pending);
+    }
+
+    /**
+     * Открыть журнал и отправить то, что осталось с прошлого запуска; вызывать до приёма апдейтов.
+     * Читается и переписывается синхронно, сами отправки идут в фоне.
+     */
+    public void replay() {
+        Map<Long, Entry> left = new LinkedHashMap<>();
+        try {
+            if (Files.exists(file)) {
+                String data = Files.readString(file, StandardCharsets.UTF_8);
+                // запись без перевода строки в конце — недописанная при падении, её не было
+                int end = data.lastIndexOf('\n') + 1;
+                if (end < data.length()) log.warn("Outbox: dropping incomplete last journal record");
+                for (String line : data.substring(0, end).split("\n")) {
+                    readLine(line, left);
+                }
+            }
+            // оставляем только незавершённые: пишем рядом и атомарно подменяем
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<Long, Entry> e : left.entrySet()) {
+                    out.write(encode(e.getKey(), e.getValue()));
+                }
+                out.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                unfinished.putAll(left);
+                for (long seq : left.keySet()) nextSeq = Math.max(nextSeq, seq + 1);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot open outbox journal " + file, e);
+        }
+
+        if (left.isEmpty()) return;
+        log.info("Outbox: replaying {} unsent messages", left.size());
+        Thread.ofVirtual().name("outbox-replay").start(() -> {
+            for (Map.Entry<Long, Entry> e : left.entrySet()) {
+                if (draining) return;
+                try {
+                    throttle.acquire(e.getValue().chatId(), 1);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                REPLAYED.inc();
+                dispatch(e.getKey(), e.getValue());
+            }
+        });
+    }
+
+    /**
+     * Записать в журнал и отправить. Во время остановки только записывает:
+     * такое сообщение уйдёт после перезапуска, а future завершится {@link CancellationException}.
+     *
+     * @throws IllegalStateException журнал ещё не открыт {@link #replay}
+     */
+    public CompletableFuture<Message> send(long chatId, PreparedMessage message) {
+        Entry entry = new Entry(chatId, message);
+        long seq;
+        synchronized (this) {
+            seq = nextSeq++;
+            if (!append(encode(seq, entry))) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Outbox journal is closed"));
+            }
+            unfinished.put(seq, entry);
+        }
+        if (draining) {
+            DEFERRED.inc();
+            return CompletableFuture.failedFuture(new CancellationException("Deferred to next start"));
+        }
+        return dispatch(seq, entry);
+    }
+
+    /**
+     * Только записать в журнал: сообщение уйдёт через {@link #replay} при следующем старте.
+     * Для уже захваченных отправок, до которых не дошла очередь к остановке.
+     */
+    public void defer(long chatId, PreparedMessage message) {
+        synchronized (this) {
+            long seq = nextSeq++;
+            Entry entry = new Entry(chatId, message);
+            if (!append(encode(seq, entry))) return;
+            unfinished.put(seq, entry);
+        }
+        DEFERRED.inc();
+    }
+
+    /**
+     * Перестать отправлять новое и дождаться ответов на уже отправленное, но не дольше timeout.
+     * После этого журнал закрыт.
+     */
+    public void drain(Duration timeout) {
+        draining = true;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (this) {
+            try {
+                while (inFlight > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (inFlight > 0) log.warn("Outbox: {} requests still in flight at deadline", inFlight);
+            log.info("Outbox drained, {} messages left for replay", unfinished.size());
+            if (channel == null) return;
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                log.error("Cannot close outbox journal", e);
+            }
+        }
+    }
+
+    private CompletableFuture<Message> dispatch(long seq, Entry entry) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        attempt(seq, entry, 1, result);
+        return result;
+    }
+
+    /**
+     * Запись закрывается только успехом или окончательным отказом (4xx кроме 429).
+     * 429, 5xx и сетевые ошибки повторяются с паузой и до успеха остаются в журнале.
+     */
+    private void attempt(long seq, Entry entry, int attempt, CompletableFuture<Message> result) {
+        synchronized (this) {
+            inFlight++;
+        }
+        bot.sendAsync(entry.message().to(entry.chatId())).whenComplete((r, e) -> {
+            Throwable cause = e == null ? null : TelegramBot.unwrap(e);
+            long retryMs = cause == null ? -1 : retryDelayMs(cause, attempt);
+            boolean interrupted = cause instanceof InterruptedException;
+            synchronized (this) {
+                if (!interrupted && retryMs < 0) finish(seq);
+                inFlight--;
+                notifyAll();
+            }
+            if (cause == null) {
+                result.complete(r);
+            } else if (retryMs < 0 && !interrupted) {
+                result.completeExceptionally(cause);
+            } else if (interrupted || draining) {
+                // прерывание при остановке: остаётся в журнале до следующего старта
+                DEFERRED.inc();
+                result.completeExceptionally(new CancellationException("Deferred to next start"));
+            } else {
+                RETRIES.inc();
+                if (cause instanceof TelegramApiRequestException re && Integer.valueOf(429).equals(re.getErrorCode())) {
+                    // лимит общий на бота: притормозить и остальных отправителей
+                    throttle.pause(TimeUnit.MILLISECONDS.toSeconds(retryMs));
+                }
+                log.warn("Outbox: message to {} failed ({}), retry #{} in {} ms",
+                        entry.chatId(), cause.getMessage(), attempt, retryMs);
+                retries.schedule(() -> Thread.ofVirtual().start(() -> retry(seq, entry, attempt + 1, result)),
+                        retryMs, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void retry(long seq, Entry entry, int attempt, CompletableFuture<Message> result) {
+        try {
+            if (!draining) throttle.acquire(entry.chatId(), 1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (draining || Thread.currentThread().isInterrupted()) {
+            DEFERRED.inc();
+            result.completeExceptionally(new CancellationException("Deferred to next start"));
+            return;
+        }
+        attempt(seq, entry, attempt, result);
+    }
+
+    /**
+     * Пауза перед повтором или -1, если ошибка окончательная.
+     */
+    static long retryDelayMs(Throwable e, int attempt) {
+        if (e instanceof TelegramApiRequestException re && re.getErrorCode() != null) {
+            int code = re.getErrorCode();
+            if (code == 429) {
+                ResponseParameters p = re.getParameters();
+                int retryAfter = (p != null && p.getRetryAfter() != null) ? p.getRetryAfter() : 1;
+                return TimeUnit.SECONDS.toMillis(retryAfter);
+            }
+            if (code < 500) return -1;
+            return backoffMs(attempt);
+        }
+        if (e instanceof TelegramApiValidationException) return -1;
+        // сеть, таймаут, неразобранный ответ
+        if (e instanceof TelegramApiException || e instanceof IOException) return backoffMs(attempt);
+        return -1;
+    }
+
+    private static long backoffMs(int attempt) {
+        return Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16));
+    }
+
+    // под this
+    private void finish(long seq) {
+        if (unfinished.remove(seq) == null) return;
+        append(ByteBuffer.wrap(("-" + seq + "\n").getBytes(StandardCharsets.US_ASCII)));
+        if (!unfinished.isEmpty()) return;
+        try {
+            if (channel != null && channel.isOpen() && channel.size() > COMPACT_BYTES) channel.truncate(0);
+        } catch (IOException e) {
+            log.warn("Cannot compact outbox journal: {}", e.getMessage());
+        }
+    }
+
+    // под this
+    private boolean append(ByteBuffer record) {
+        if (channel == null) {
+            // ошибка порядка старта, а не остановки: молча терять подтверждения нельзя
+            throw new IllegalStateException("Outbox journal is not open yet, replay() must run first");
+        }
+        if (!channel.isOpen()) {
+            log.error("Outbox journal is closed, record lost");
+            return false;
+        }
+        try {
+            while (record.hasRemaining()) channel.write(record);
+            return true;
+        } catch (IOException e) {
+            log.error("Cannot write outbox journal", e);
+            return false;
+        }
+    }
+
+    private synchronized int pending() {
+        return unfinished.size();
+    }
+
+    private static ByteBuffer encode(long seq, Entry e) {
+        // хвост — JSON, переводы строк в нём экранированы, так что запись остаётся одной строкой
+        String line = "+" + seq + " " + e.chatId() + " " + e.message().method() + " " + e.message().tail() + "\n";
+        return ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void readLine(String line, Map<Long, Entry> left) {
+        try {
+            if (line.startsWith("-")) {
+                left.remove(Long.parseLong(line.substring(1)));
+            } else if (line.startsWith("+")) {
+                String[] parts = line.substring(1).split(" ", 4);
+                left.put(Long.parseLong(parts[0]),
+                        new Entry(Long.parseLong(parts[1]), PreparedMessage.restore(parts[2], parts[3])));
+            } else if (!line.isEmpty()) {
+                throw new IllegalArgumentException("unknown record");
+            }
+        } catch (RuntimeException e) {
+            log.warn("Outbox: skipping damaged journal line ({})", e.getMessage());
+        }
+    }
+}
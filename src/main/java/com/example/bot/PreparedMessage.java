@@ -0,0 +1,111 @@
+package com.example.bot;
+
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.RawValue;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiValidationException;
+
+/**
+ * Сообщение с неизменным текстом и клавиатурой, сериализованное один раз.
+ * На отправке JSON не строится заново: к готовому хвосту дописывается только chat_id,
+ * а библиотека пишет его как есть (через {@link JsonValue}).
+ */
+public final class PreparedMessage {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String method;
+    private final String tail;   // JSON без chat_id, с запятой в начале (или пустой)
+    private final String text;
+
+    private PreparedMessage(String method, String tail, String text) {
+        this.method = method;
+        this.tail = tail;
+        this.text = text;
+    }
+
+    /**
+     * @param message шаблон; chat_id в нём любой, он отбрасывается
+     */
+    public static PreparedMessage of(SendMessage message) {
+        try {
+            message.validate();
+        } catch (TelegramApiValidationException e) {
+            throw new IllegalArgumentException("Invalid template: " + e.getMessage(), e);
+        }
+        ObjectNode node = MAPPER.valueToTree(message);
+        node.remove("chat_id");
+        String json;
+        try {
+            json = MAPPER.writeValueAsString(node);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Cannot serialize template", e);
+        }
+        // "{...}" -> ",..." чтобы сразу дописывать после chat_id
+        String tail = node.isEmpty() ? "" : "," + json.substring(1, json.length() - 1);
+        return new PreparedMessage(message.getMethod(), tail, message.getText());
+    }
+
+    public String text() {
+        return text;
+    }
+
+    // --- для журнала исходящих (Outbox): метод и хвост JSON хранятся как есть ---
+
+    String method() {
+        return method;
+    }
+
+    String tail() {
+        return tail;
+    }
+
+    /**
+     * Восстановить из журнала; текст не сохраняется, {@link #text()} вернёт null.
+     */
+    static PreparedMessage restore(String method, String tail) {
+        return new PreparedMessage(method, tail, null);
+    }
+
+    /**
+     * Вызов Bot API для конкретного чата; отправляется обычным {@link TelegramBot#sendAsync}.
+     */
+    public BotApiMethod<Message> to(long chatId) {
+        return new Bound(method, "{\"chat_id\":" + chatId + tail + "}");
+    }
+
+    private static final class Bound extends BotApiMethod<Message> {
+        private final String method;
+        private final RawValue body;
+
+        Bound(String method, String json) {
+            this.method = method;
+            this.body = new RawValue(json);
+        }
+
+        @JsonValue
+        public RawValue body() {
+            return body;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public Message deserializeResponse(String answer) throws TelegramApiRequestException {
+            return deserializeResponse(answer, Message.class);
+        }
+
+        @Override
+        public void validate() {
+            // проверено при сборке шаблона
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.bot;
+
+import com.example.bot.db.Database;
+
+import java.util.List;
+
+/**
+ * Текст страницы отчёта /subs. Отдельно от бота, чтобы рендер можно было мерить без него.
+ */
+public final class SubsReport {
+    private SubsReport() {}
+
+    public static String renderPage(List<Database.SubscriberRow> rows, int firstOrdinal) {
+        StringBuilder sb = new StringBuilder("👥 Активные подписки (")
+                .append(firstOrdinal).append('–').append(firstOrdinal + rows.size() - 1).append("):\n\n");
+        int n = firstOrdinal;
+        for (Database.SubscriberRow r : rows) {
+            String username = (r.username() == null || r.username().isBlank()) ? "(без username)" : r.username();
+            String tag = (r.tag() == null || r.tag().isBlank()) ? "basic" : r.tag();
+            String monthStatus = (r.monthActive() && r.monthEnd() != null)
+                    ? "месячная до: " + DateUtils.formatRu(r.monthEnd())
+                    : "месячная не оплачена";
+            sb.append(n++).append(") @").append(username).append(" (").append(tag).append(")\n")
+                    .append("годовая до: ").append(DateUtils.formatRu(r.yearEnd())).append("\n")
+                    .append(monthStatus).append("\n\n");
+        }
+        return sb.toString().trim();
+    }
+}
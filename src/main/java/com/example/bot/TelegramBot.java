@@ -1,28 +1,46 @@
 package com.example.bot;
 
 import com.example.bot.db.Database;
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
 import com.example.bot.payment.PaymentService;
 import com.example.bot.service.BroadcastService;
+import com.example.bot.service.Segment;
 import com.example.bot.service.SubscriptionService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.*;
-import org.telegram.telegrambots.meta.api.objects.payments.PreCheckoutQuery;
 import org.telegram.telegrambots.meta.api.objects.payments.SuccessfulPayment;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.Comparator;
 import java.util.List;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
-public class TelegramBot extends TelegramLongPollingBot {
+public final class TelegramBot extends TelegramLongPollingBot {
     private static final Logger log = LoggerFactory.getLogger(TelegramBot.class);
 
     private final Env env;
@@ -33,14 +51,173 @@ public class TelegramBot extends TelegramLongPollingBot {
     private PaymentService paymentService;
 
     // --- простая защита от повторной доставки одного и того же update ---
-    private final Deque<Integer> recentUpdateIds = new ArrayDeque<>();
-    private final Set<Integer> recentUpdateSet = new HashSet<>();
     private static final int UPDATE_ID_CACHE = 2048;
+    private final UpdateIdWindow recentUpdateIds = new UpdateIdWindow(UPDATE_ID_CACHE);
+
+    // --- кнопки, создающие счёт: дедупликация и лимит нажатий на чат ---
+    private static final Set<String> INVOICE_ACTIONS =
+            Set.of("BUY_SUBSCRIPTION", "BUY_YEAR_SUBSCRIPTION", "BUY_MONTH_SUBSCRIPTION");
+    private final CallbackGuard callbackGuard = new CallbackGuard();
+
+    // --- апдейты разных чатов обрабатываются параллельно, одного чата — по порядку ---
+    private final UpdateDispatcher dispatcher;
+
+    private static final MetricFamily<Counter> UPDATES =
+            Metrics.counter("bot_updates_total", "Updates handled by type", "type");
+    private static final MetricFamily<Histogram> UPDATE_LATENCY =
+            Metrics.histogram("bot_update_seconds", "Update handling time by type", "type");
+    private static final MetricFamily<Histogram> API_LATENCY =
+            Metrics.histogram("telegram_api_seconds", "Bot API call latency by method", "method");
+    private static final MetricFamily<Counter> API_ERRORS =
+            Metrics.counter("telegram_api_errors_total", "Failed Bot API calls by error code", "code");
+
+    // --- исходящие запросы: не больше outboundMaxInFlight одновременно, сверх — ждём (backpressure) ---
+    private final Semaphore outboundPermits;
+    // null — JSON-методы идут транспортом библиотеки
+    private final HttpTransport transport;
 
     public TelegramBot(Env env, Database db) {
-        super(env.botToken());
+        this(env, db, botOptions(env));
+    }
+
+    private TelegramBot(Env env, Database db, DefaultBotOptions options) {
+        super(options, env.botToken());
         this.env = env;
         this.db = db;
+        this.outboundPermits = new Semaphore(env.outboundMaxInFlight());
+        // адрес как у getBaseUrl(), но без вызова переопределяемого метода из конструктора
+        this.transport = env.jdkTransport()
+                ? new HttpTransport(options.getBaseUrl() + env.botToken() + "/", env.httpConnections(),
+                        Duration.ofMillis(env.httpConnectTimeoutMs()), Duration.ofMillis(env.httpRequestTimeoutMs()))
+                : null;
+        this.dispatcher = new UpdateDispatcher(env.updateStripes(), this::handleUpdate);
+
+        Metrics.gauge("update_queue_depth", "Updates waiting in dispatcher stripes", dispatcher::queueDepth);
+        Metrics.gauge("update_stripe_max_depth", "Updates waiting in the busiest dispatcher stripe",
+                dispatcher::maxStripeDepth);
+        Metrics.gauge("update_stripe_max_lag_seconds", "Longest stripe queue wait since the previous scrape",
+                dispatcher::takeMaxLagSeconds);
+        Metrics.gauge("telegram_api_in_flight", "Bot API requests in flight",
+                () -> env.outboundMaxInFlight() - outboundPermits.availablePermits());
+    }
+
+    public UpdateDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    private static DefaultBotOptions botOptions(Env env) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        // по умолчанию executeAsync библиотеки крутится на одном потоке
+        options.setMaxThreads(env.outboundMaxInFlight());
+        return options;
+    }
+
+    /**
+     * Асинхронный вызов Bot API через executeAsync с ограничением числа запросов в полёте.
+     * Если лимит исчерпан, вызывающий поток ждёт свободного слота.
+     */
+    public <T extends Serializable, M extends BotApiMethod<T>> CompletableFuture<T> sendAsync(M method) {
+        return limited(method.getMethod(), () -> executeAsync(method));
+    }
+
+    public CompletableFuture<Message> sendAsync(SendPhoto photo) {
+        return limited("sendPhoto", () -> executeAsync(photo));
+    }
+
+    public CompletableFuture<Message> sendAsync(SendVideo video) {
+        return limited("sendVideo", () -> executeAsync(video));
+    }
+
+    public CompletableFuture<Message> sendAsync(SendDocument document) {
+        return limited("sendDocument", () -> executeAsync(document));
+    }
+
+    public CompletableFuture<List<Message>> sendAsync(SendMediaGroup group) {
+        return limited("sendMediaGroup", () -> executeAsync(group));
+    }
+
+    /**
+     * Все executeAsync JSON-методов (в том числе из {@link #sendAsync}) — через выбранный транспорт.
+     */
+    @Override
+    public <T extends Serializable, M extends BotApiMethod<T>> CompletableFuture<T> executeAsync(M method)
+            throws TelegramApiException {
+        return transport != null ? transport.execute(method) : super.executeAsync(method);
+    }
+
+    /**
+     * Синхронные вызовы тоже попадают в метрики Bot API.
+     */
+    @Override
+    public <T extends Serializable, M extends BotApiMethod<T>> T execute(M method) throws TelegramApiException {
+        long started = System.nanoTime();
+        try {
+            return transport != null ? await(transport.execute(method)) : super.execute(method);
+        } catch (TelegramApiException e) {
+            API_ERRORS.get(errorCode(e)).inc();
+            throw e;
+        } finally {
+            API_LATENCY.get(method.getMethod()).recordSince(started);
+        }
+    }
+
+    /**
+     * Отправить и забыть: ошибка только логируется.
+     */
+    public <T extends Serializable, M extends BotApiMethod<T>> void send(M method) {
+        sendAsync(method).whenComplete((r, e) -> {
+            if (e != null) log.warn("{} failed: {}", method.getMethod(), unwrap(e).getMessage());
+        });
+    }
+
+    /**
+     * Дождаться результата, вернув исходное TelegramApiException (нужно для разбора 429).
+     */
+    public static <T> T await(CompletableFuture<T> future) throws TelegramApiException {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof TelegramApiException te) throw te;
+            throw new TelegramApiException(cause);
+        }
+    }
+
+    public static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    private <T> CompletableFuture<T> limited(String apiMethod, Callable<CompletableFuture<T>> call) {
+        try {
+            outboundPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        long started = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.call();
+        } catch (Exception e) {
+            outboundPermits.release();
+            API_ERRORS.get(errorCode(e)).inc();
+            return CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((r, e) -> {
+            outboundPermits.release();
+            API_LATENCY.get(apiMethod).recordSince(started);
+            if (e != null) API_ERRORS.get(errorCode(unwrap(e))).inc();
+        });
+    }
+
+    private static String errorCode(Throwable e) {
+        if (e instanceof TelegramApiRequestException re && re.getErrorCode() != null) {
+            return Integer.toString(re.getErrorCode());
+        }
+        return "io";
     }
 
     public void setServices(SubscriptionService subscriptionService,
@@ -62,7 +239,7 @@ public class TelegramBot extends TelegramLongPollingBot {
 
     private void ensureUserSaved(User user, long chatId) {
         if (user == null) return;
-        db.upsertUser(chatId,
+        db.saveUser(chatId,
                 user.getUserName(),
                 user.getFirstName(),
                 user.getLastName(),
@@ -70,25 +247,41 @@ public class TelegramBot extends TelegramLongPollingBot {
     }
 
     private boolean isDuplicate(Update u) {
-        int id = u.getUpdateId();
-        synchronized (recentUpdateSet) {
-            if (recentUpdateSet.contains(id)) return true;
-            recentUpdateSet.add(id);
-            recentUpdateIds.addLast(id);
-            if (recentUpdateIds.size() > UPDATE_ID_CACHE) {
-                Integer old = recentUpdateIds.removeFirst();
-                recentUpdateSet.remove(old);
-            }
-        }
-        return false;
+        return recentUpdateIds.isDuplicate(u.getUpdateId());
     }
 
     @Override
     public void onUpdateReceived(Update update) {
+        // защита от случайных дублей — до раскладки по полосам
+        if (isDuplicate(update)) return;
+        if (update.hasPreCheckoutQuery() && paymentService != null) {
+            // мимо полос: на ответ у Telegram 10 секунд, очередь чата ждать не может
+            paymentService.submitPreCheckout(update.getPreCheckoutQuery(), System.nanoTime());
+            return;
+        }
+        dispatcher.dispatch(update);
+    }
+
+    private static String updateType(Update u) {
+        if (u.hasMessage()) return u.getMessage().getSuccessfulPayment() != null ? "successful_payment" : "message";
+        if (u.hasCallbackQuery()) return "callback_query";
+        if (u.hasPreCheckoutQuery()) return "pre_checkout_query";
+        return "other";
+    }
+
+    private void handleUpdate(Update update) {
+        String type = updateType(update);
+        long started = System.nanoTime();
         try {
-            // защита от случайных дублей
-            if (isDuplicate(update)) return;
+            processUpdate(update);
+        } finally {
+            UPDATES.get(type).inc();
+            UPDATE_LATENCY.get(type).recordSince(started);
+        }
+    }
 
+    private void processUpdate(Update update) {
+        try {
             if (update.hasMessage()) {
                 Message msg = update.getMessage();
                 long chatId = msg.getChatId();
@@ -99,9 +292,9 @@ public class TelegramBot extends TelegramLongPollingBot {
                 if (sp != null) {
                     String payload = sp.getInvoicePayload();
                     if ("subscribe_year_1".equals(payload)) {
-                        subscriptionService.activateYearSubscription(chatId);
+                        subscriptionService.activateYearSubscription(chatId, sp);
                     } else if ("subscribe_month_1".equals(payload)) {
-                        subscriptionService.extendMonthly(chatId);
+                        subscriptionService.extendMonthly(chatId, sp);
                     }
                     return;
                 }
@@ -121,8 +314,8 @@ public class TelegramBot extends TelegramLongPollingBot {
                         handleSubs(chatId);
                         return;
                     }
-                    if (text.equals("/send") && isAdmin(chatId)) {
-                        handleSendStart(chatId);
+                    if ((text.equals("/send") || text.startsWith("/send ")) && isAdmin(chatId)) {
+                        handleSendStart(chatId, text.substring("/send".length()));
                         return;
                     }
 
@@ -130,10 +323,6 @@ public class TelegramBot extends TelegramLongPollingBot {
                     if (isAdmin(chatId) && broadcastService.isCollecting(chatId)) {
                         broadcastService.setCaption(chatId, text);
                         broadcastService.finalizeAndBroadcast(chatId);
-                        execute(SendMessage.builder()
-                                .chatId(Long.toString(chatId))
-                                .text("📨 Рассылка успешно отправлена всем пользователям.")
-                                .build());
                         return;
                     }
                 }
@@ -165,13 +354,27 @@ public class TelegramBot extends TelegramLongPollingBot {
                 long chatId = cq.getMessage().getChatId();
                 ensureUserSaved(cq.getFrom(), chatId);
 
-                // ACK для inline-кнопки, чтобы не было повторных нажатий из-за "крутилки"
-                try {
-                    execute(AnswerCallbackQuery.builder()
-                            .callbackQueryId(cq.getId())
-                            .cacheTime(2)
-                            .build());
-                } catch (TelegramApiException ignored) {}
+                // Кнопки оплаты: повтор того же счёта схлопывается, частые нажатия режутся
+                CallbackGuard.Decision decision = INVOICE_ACTIONS.contains(data)
+                        ? callbackGuard.tryStart(chatId, data)
+                        : CallbackGuard.Decision.RUN;
+
+                // ACK для inline-кнопки, чтобы не было повторных нажатий из-за "крутилки"; отклонённым — тоже
+                send(AnswerCallbackQuery.builder()
+                        .callbackQueryId(cq.getId())
+                        .cacheTime(2)
+                        .text(switch (decision) {
+                            case RUN -> null;
+                            case DUPLICATE -> "⏳ Счёт уже отправлен, проверьте чат";
+                            case THROTTLED -> "Слишком много нажатий, попробуйте через пару секунд";
+                        })
+                        .build());
+                if (decision != CallbackGuard.Decision.RUN) return;
+
+                if ((data.startsWith(SUBS_NEXT) || data.startsWith(SUBS_PREV)) && isAdmin(chatId)) {
+                    handleSubsPage(cq);
+                    return;
+                }
 
                 switch (data) {
                     case "MY_SUBSCRIPTION":
@@ -179,17 +382,15 @@ public class TelegramBot extends TelegramLongPollingBot {
                         break;
                     case "BUY_SUBSCRIPTION":
                         // Если нет годовой — предлагаем год; если год есть — месяц
-                        if (!db.isSubscriptionActive(chatId)) {
-                            paymentService.sendYearInvoice(chatId);
-                        } else {
-                            paymentService.sendMonthInvoice(chatId);
-                        }
+                        finishGuarded(chatId, data, !db.getSubscriptionState(chatId).yearActive()
+                                ? paymentService.sendYearInvoice(chatId)
+                                : paymentService.sendMonthInvoice(chatId));
                         break;
                     case "BUY_YEAR_SUBSCRIPTION":
-                        paymentService.sendYearInvoice(chatId);
+                        finishGuarded(chatId, data, paymentService.sendYearInvoice(chatId));
                         break;
                     case "BUY_MONTH_SUBSCRIPTION":
-                        paymentService.sendMonthInvoice(chatId);
+                        finishGuarded(chatId, data, paymentService.sendMonthInvoice(chatId));
                         break;
                     case "CANCEL_SUBSCRIPTION":
                         askCancelConfirm(cq);
@@ -207,98 +408,119 @@ public class TelegramBot extends TelegramLongPollingBot {
                 }
             }
 
-            if (update.hasPreCheckoutQuery()) {
-                PreCheckoutQuery pq = update.getPreCheckoutQuery();
-                paymentService.answerPreCheckout(pq.getId(), true, null);
-            }
-
         } catch (Exception e) {
             log.error("Update handling failed", e);
         }
     }
 
-    private void sendStart(long chatId) throws TelegramApiException {
-        String text = "Привет! 👋\n\n" +
-                "Закажи вечные очки всего за 390 ₽ в месяц!\n" +
-                "Если очки сломались или надоели — замени их на новые без доплат.\n\n" +
-                "Что ты получишь:\n" +
-                "• Замена очков бесплатно один раз до конца подписки 👓\n" +
-                "• Бесплатные обслуживания до конца подписки:\n" +
-                "  – Чистка — неограниченное количество раз ✨\n" +
-                "  – Выправка — 5 раз 🔧\n" +
-                "  – Замена носоупоров — 5 раз 👃\n" +
-                "• Бесплатная проверка зрения 👁️\n\n" +
-                "Важно:\n" +
-                "• Подписка должна быть активна, чтобы пользоваться всеми преимуществами 🔔\n\n" +
-                "Как оформить:\n" +
-                "• Подпишись на 1 год: первый платёж — 3900 ₽, далее — 390 ₽ в месяц 💳\n" +
-                "• Напиши или нажми «💳 Оформить подписку» ниже\n\n" +
-                "Хотите оформить подписку сейчас? ✅";
-
-        SendMessage m = SendMessage.builder()
-                .chatId(Long.toString(chatId))
-                .text(text)
-                .replyMarkup(Keyboards.startMenu())
-                .build();
-        execute(m);
+    private void finishGuarded(long chatId, String action, CompletableFuture<?> done) {
+        done.whenComplete((r, e) -> callbackGuard.finish(chatId, action));
+    }
+
+    private void sendStart(long chatId) {
+        send(Templates.START.to(chatId));
+    }
+
+    private void sendAdminPanel(long chatId) {
+        send(Templates.ADMIN_PANEL.to(chatId));
     }
 
-    private void sendAdminPanel(long chatId) throws TelegramApiException {
-        String txt = "🛠 Админ-панель\n\n" +
-                "• /subs — 👥 показать активные годовые подписки и статус месяца\n" +
-                "• /send — 📣 сделать рассылку (сначала медиа/файлы, затем текст)";
-        execute(SendMessage.builder()
+    // --- /subs: страницы по SUBS_PAGE_SIZE, ключ страницы (subscription_end, chat_id) едет в callback_data ---
+    private static final int SUBS_PAGE_SIZE = 20;
+    private static final String SUBS_NEXT = "SUBS_NEXT";
+    private static final String SUBS_PREV = "SUBS_PREV";
+
+    private void handleSubs(long chatId) {
+        List<Database.SubscriberRow> rows = db.pageActiveSubscribers(null, 0, false, SUBS_PAGE_SIZE + 1);
+        if (rows.isEmpty()) {
+            send(Templates.NO_SUBSCRIBERS.to(chatId));
+            return;
+        }
+        boolean hasNext = rows.size() > SUBS_PAGE_SIZE;
+        if (hasNext) rows = rows.subList(0, SUBS_PAGE_SIZE);
+        send(SendMessage.builder()
                 .chatId(Long.toString(chatId))
-                .text(txt)
+                .text(SubsReport.renderPage(rows, 1))
+                .replyMarkup(subsPager(rows, 1, hasNext))
                 .build());
     }
 
-    private void handleSubs(long chatId) throws TelegramApiException {
-        var lines = db.listActiveSubscribersTagAndDate();
-        String body;
-        if (lines.isEmpty()) {
-            body = "🕊 Сейчас нет ни одной активной годовой подписки.";
+    /**
+     * Листание /subs: callback вида SUBS_NEXT:end:chatId:номер, правим то же сообщение.
+     */
+    private void handleSubsPage(CallbackQuery cq) {
+        String[] parts = cq.getData().split(":");
+        if (parts.length != 4) return;
+        boolean backward = SUBS_PREV.equals(parts[0]);
+        LocalDate keyEnd = LocalDate.parse(parts[1]);
+        long keyChatId = Long.parseLong(parts[2]);
+        int firstOrdinal = Integer.parseInt(parts[3]);
+
+        List<Database.SubscriberRow> rows = db.pageActiveSubscribers(keyEnd, keyChatId, backward, SUBS_PAGE_SIZE + 1);
+        boolean hasNext;
+        if (backward) {
+            // лишняя строка сверху означает только, что впереди ещё есть страницы
+            if (rows.size() > SUBS_PAGE_SIZE) rows = rows.subList(rows.size() - SUBS_PAGE_SIZE, rows.size());
+            firstOrdinal = Math.max(1, firstOrdinal - rows.size());
+            hasNext = true;
         } else {
-            StringBuilder sb = new StringBuilder("👥 Активные подписки:\n\n");
-            for (int i = 0; i < lines.size(); i++) {
-                sb.append(i + 1).append(") ").append(lines.get(i)).append("\n\n");
-            }
-            body = sb.toString().trim();
+            hasNext = rows.size() > SUBS_PAGE_SIZE;
+            if (hasNext) rows = rows.subList(0, SUBS_PAGE_SIZE);
         }
-        execute(SendMessage.builder()
-                .chatId(Long.toString(chatId))
-                .text(body)
+        if (rows.isEmpty()) return;
+
+        send(EditMessageText.builder()
+                .chatId(Long.toString(cq.getMessage().getChatId()))
+                .messageId(cq.getMessage().getMessageId())
+                .text(SubsReport.renderPage(rows, firstOrdinal))
+                .replyMarkup(subsPager(rows, firstOrdinal, hasNext))
                 .build());
     }
 
-    private void handleSendStart(long chatId) throws TelegramApiException {
-        broadcastService.startCollecting(chatId);
-        String txt = "📣 Режим рассылки\n\n" +
-                "1️⃣ Отправьте фото (можно несколько), видео и/или файлы.\n" +
-                "2️⃣ Когда закончите с медиа — пришлите одним сообщением текст рассылки.\n\n" +
-                "✉️ Всё будет отправлено пользователям одним сообщением.";
-        execute(SendMessage.builder()
-                .chatId(Long.toString(chatId))
-                .text(txt)
-                .build());
+    private static InlineKeyboardMarkup subsPager(List<Database.SubscriberRow> rows, int firstOrdinal, boolean hasNext) {
+        Database.SubscriberRow first = rows.get(0);
+        Database.SubscriberRow last = rows.get(rows.size() - 1);
+        String prev = firstOrdinal > 1
+                ? SUBS_PREV + ":" + first.yearEnd() + ":" + first.chatId() + ":" + firstOrdinal
+                : null;
+        String next = hasNext
+                ? SUBS_NEXT + ":" + last.yearEnd() + ":" + last.chatId() + ":" + (firstOrdinal + rows.size())
+                : null;
+        return Keyboards.subsPager(prev, next);
+    }
+
+    /**
+     * /send [сегмент]: без аргументов — всем, иначе условия через пробел (см. {@link Segment}).
+     */
+    private void handleSendStart(long chatId, String segmentArgs) {
+        Segment segment;
+        try {
+            segment = Segment.parse(segmentArgs);
+        } catch (IllegalArgumentException e) {
+            send(SendMessage.builder()
+                    .chatId(Long.toString(chatId))
+                    .text("⚠️ " + e.getMessage() + "\n\n" + SEGMENT_HELP)
+                    .build());
+            return;
+        }
+        broadcastService.startCollecting(chatId, segment);
+        send(Templates.BROADCAST_MODE.to(chatId));
+        if (!segment.isAll()) {
+            send(SendMessage.builder()
+                    .chatId(Long.toString(chatId))
+                    .text("🎯 Сегмент: " + segment + "\nПолучателей сейчас: " + broadcastService.countAudience(segment))
+                    .build());
+        }
     }
 
-    private void askCancelConfirm(CallbackQuery cq) throws TelegramApiException {
-        SendMessage msg = SendMessage.builder()
-                .chatId(cq.getMessage().getChatId().toString())
-                .text("❓ Вы действительно хотите отменить подписку?\n" +
-                        "После отмены доступ к сервису может быть ограничен.")
-                .replyMarkup(Keyboards.confirmCancel())
-                .build();
-        execute(msg);
+    private static final String SEGMENT_HELP = "Сегменты: /send year | no_year | month | month_unpaid | " +
+            "expiring:N | tag:X, несколько условий через пробел — пересечение.";
+
+    private void askCancelConfirm(CallbackQuery cq) {
+        send(Templates.CONFIRM_CANCEL.to(cq.getMessage().getChatId()));
     }
 
-    private void sendCancelOk(long chatId) throws TelegramApiException {
-        SendMessage msg = SendMessage.builder()
-                .chatId(Long.toString(chatId))
-                .text("Ваша подписка отменена.")
-                .replyMarkup(Keyboards.backToMenu())
-                .build();
-        execute(msg);
+    private void sendCancelOk(long chatId) {
+        send(Templates.CANCEL_OK.to(chatId));
     }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.example.bot;
+
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+
+/**
+ * Неизменные ответы бота: меню, админские подсказки и тексты напоминаний.
+ * Собираются и сериализуются один раз при загрузке класса.
+ */
+public final class Templates {
+
+    public static final PreparedMessage START = prepare("Привет! 👋\n\n" +
+            "Закажи вечные очки всего за 390 ₽ в месяц!\n" +
+            "Если очки сломались или надоели — замени их на новые без доплат.\n\n" +
+            "Что ты получишь:\n" +
+            "• Замена очков бесплатно один раз до конца подписки 👓\n" +
+            "• Бесплатные обслуживания до конца подписки:\n" +
+            "  – Чистка — неограниченное количество раз ✨\n" +
+            "  – Выправка — 5 раз 🔧\n" +
+            "  – Замена носоупоров — 5 раз 👃\n" +
+            "• Бесплатная проверка зрения 👁️\n\n" +
+            "Важно:\n" +
+            "• Подписка должна быть активна, чтобы пользоваться всеми преимуществами 🔔\n\n" +
+            "Как оформить:\n" +
+            "• Подпишись на 1 год: первый платёж — 3900 ₽, далее — 390 ₽ в месяц 💳\n" +
+            "• Напиши или нажми «💳 Оформить подписку» ниже\n\n" +
+            "Хотите оформить подписку сейчас? ✅",
+            Keyboards.startMenu());
+
+    public static final PreparedMessage ADMIN_PANEL = prepare("🛠 Админ-панель\n\n" +
+            "• /subs — 👥 показать активные годовые подписки и статус месяца\n" +
+            "• /send — 📣 сделать рассылку (сначала медиа/файлы, затем текст)\n" +
+            "• /send month_unpaid, /send expiring:7, /send tag:vip — 🎯 рассылка по сегменту",
+            null);
+
+    public static final PreparedMessage BROADCAST_MODE = prepare("📣 Режим рассылки\n\n" +
+            "1️⃣ Отправьте фото (можно несколько), видео и/или файлы.\n" +
+            "2️⃣ Когда закончите с медиа — пришлите одним сообщением текст рассылки.\n\n" +
+            "✉️ Всё будет отправлено пользователям одним сообщением.",
+            null);
+
+    public static final PreparedMessage NO_SUBSCRIBERS = prepare(
+            "🕊 Сейчас нет ни одной активной годовой подписки.", null);
+
+    public static final PreparedMessage CONFIRM_CANCEL = prepare(
+            "❓ Вы действительно хотите отменить подписку?\n" +
+                    "После отмены доступ к сервису может быть ограничен.",
+            Keyboards.confirmCancel());
+
+    public static final PreparedMessage CANCEL_OK = prepare("Ваша подписка отменена.", Keyboards.backToMenu());
+
+    // --- напоминания ---
+
+    public static final PreparedMessage MONTH_MINUS_3 = prepare(
+            "⏰ Через 3 дня заканчивается оплаченный месяц вашей подписки.\n" +
+                    "Чтобы сохранить обслуживание за 390 ₽ в месяц, оплатите следующий месяц.",
+            Keyboards.buyMonthButton());
+
+    public static final PreparedMessage MONTH_TODAY = prepare(
+            "⚠️ Срок вашей месячной оплаты истёк.\n" +
+                    "Оплатите 390 ₽, чтобы продолжить обслуживание в рамках годовой подписки.",
+            Keyboards.buyMonthButton());
+
+    public static final PreparedMessage YEAR_MINUS_3 = prepare(
+            "⏰ Через 3 дня заканчивается ваша годовая подписка на вечные очки.\n" +
+                    "Продлите её, чтобы сохранить все преимущества.",
+            Keyboards.buyYearButton());
+
+    public static final PreparedMessage YEAR_TODAY = prepare(
+            "⚠️ Ваша годовая подписка закончилась.\n" +
+                    "Чтобы продолжить пользоваться сервисом, оформите новый год за 3900 ₽.",
+            Keyboards.buyYearButton());
+
+    private Templates() {
+    }
+
+    private static PreparedMessage prepare(String text, InlineKeyboardMarkup keyboard) {
+        return PreparedMessage.of(SendMessage.builder()
+                .chatId("0")
+                .text(text)
+                .replyMarkup(keyboard)
+                .build());
+    }
+}
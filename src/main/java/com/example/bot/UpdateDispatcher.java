@@ -0,0 +1,179 @@
+package com.example.bot;
+
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Раскладывает апдейты по полосам (stripe) по chat_id: у каждой полосы своя очередь
+ * и свой виртуальный поток. Апдейты одного чата обрабатываются строго по порядку,
+ * разные чаты — параллельно, и медленная оплата одного пользователя не тормозит остальных.
+ */
+public class UpdateDispatcher implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    private static final Histogram QUEUE_LAG =
+            Metrics.histogram("update_queue_lag_seconds", "Time an update waits in its stripe queue");
+
+    private static final long LAG_WARN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long LAG_WARN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long DRAIN_POLL_MS = 10;
+
+    private record Task(Update update, long enqueuedNanos) {}
+
+    private final class Stripe implements Runnable {
+        final int index;
+        final LinkedBlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+        final AtomicLong maxLagNanos = new AtomicLong();
+        Thread thread;
+
+        Stripe(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long lag = System.nanoTime() - task.enqueuedNanos;
+                QUEUE_LAG.record(lag);
+                maxLagNanos.accumulateAndGet(lag, Math::max);
+                if (lag > LAG_WARN_NANOS) warnLag(index, lag);
+                try {
+                    handler.accept(task.update);
+                } catch (Exception e) {
+                    log.error("Update handling failed", e);
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final Consumer<Update> handler;
+    private final Stripe[] stripes;
+    private final int mask;
+    // принятые, но ещё не обработанные апдейты (в очередях и в обработке)
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean closing;
+    private final AtomicLong lastLagWarnNanos = new AtomicLong(System.nanoTime() - LAG_WARN_INTERVAL_NANOS);
+
+    /**
+     * @param stripes число полос, округляется вверх до степени двойки
+     */
+    public UpdateDispatcher(int stripes, Consumer<Update> handler) {
+        int n = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.handler = handler;
+        this.stripes = new Stripe[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            Stripe s = new Stripe(i);
+            s.thread = Thread.ofVirtual().name("updates-" + i).start(s);
+            this.stripes[i] = s;
+        }
+    }
+
+    public void dispatch(Update update) {
+        if (closing) {
+            log.warn("Update {} arrived after shutdown started, dropped", update.getUpdateId());
+            return;
+        }
+        long key = chatKey(update);
+        outstanding.incrementAndGet();
+        stripes[stripeOf(key)].queue.add(new Task(update, System.nanoTime()));
+    }
+
+    /**
+     * Остановка: новые апдейты не принимаются, уже принятые дорабатываются, но не дольше timeout.
+     * Потом потоки полос прерываются.
+     */
+    public void drain(Duration timeout) {
+        closing = true;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            while (outstanding.get() > 0 && System.nanoTime() - deadline < 0) {
+                TimeUnit.MILLISECONDS.sleep(DRAIN_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int left = outstanding.get();
+        if (left > 0) log.warn("{} updates were not handled before shutdown", left);
+        close();
+    }
+
+    /**
+     * Суммарная длина очередей всех полос.
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (Stripe s : stripes) depth += s.queue.size();
+        return depth;
+    }
+
+    /**
+     * Очередь самой загруженной полосы: горячий чат виден здесь, а в сумме по всем теряется.
+     */
+    public int maxStripeDepth() {
+        int max = 0;
+        for (Stripe s : stripes) max = Math.max(max, s.queue.size());
+        return max;
+    }
+
+    /**
+     * Наибольшая задержка в очереди по всем полосам с прошлого вызова (между опросами метрик), в секундах.
+     */
+    public double takeMaxLagSeconds() {
+        long max = 0;
+        for (Stripe s : stripes) max = Math.max(max, s.maxLagNanos.getAndSet(0));
+        return max / 1e9;
+    }
+
+    @Override
+    public void close() {
+        for (Stripe s : stripes) s.thread.interrupt();
+    }
+
+    private int stripeOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void warnLag(int stripe, long lagNanos) {
+        long now = System.nanoTime();
+        long last = lastLagWarnNanos.get();
+        if (now - last < LAG_WARN_INTERVAL_NANOS || !lastLagWarnNanos.compareAndSet(last, now)) return;
+        log.warn("Update stripe {} lags {} ms (queued total: {})",
+                stripe, TimeUnit.NANOSECONDS.toMillis(lagNanos), queueDepth());
+    }
+
+    /**
+     * Ключ упорядочивания: чат, а для апдейтов без чата — пользователь.
+     */
+    static long chatKey(Update u) {
+        if (u.hasMessage()) return u.getMessage().getChatId();
+        if (u.hasCallbackQuery()) {
+            var cq = u.getCallbackQuery();
+            if (cq.getMessage() != null) return cq.getMessage().getChatId();
+            return cq.getFrom().getId();
+        }
+        if (u.hasPreCheckoutQuery()) return u.getPreCheckoutQuery().getFrom().getId();
+        if (u.hasEditedMessage()) return u.getEditedMessage().getChatId();
+        if (u.hasMyChatMember()) return u.getMyChatMember().getChat().getId();
+        return 0;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Окно последних update_id без блокировок и аллокаций: кольцо на size слотов (id & mask)
+ * и верхняя отметка, всё через CAS. Слот и отметка хранят пару (эпоха, id) в одном long.
+ * id чуть ниже окна (опоздавший поток) пропускается без записи, как и раньше.
+ * Если же id упал ниже отметки больше чем на RESET_GAP, считаем, что Telegram начал нумерацию
+ * заново (так бывает после недели без апдейтов), и открываем новую эпоху — старые слоты перестают совпадать.
+ */
+final class UpdateIdWindow {
+    private static final Logger log = LoggerFactory.getLogger(UpdateIdWindow.class);
+
+    private static final long RESET_GAP = 1 << 20;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final AtomicLong high = new AtomicLong();   // 0 — апдейтов ещё не было
+
+    /**
+     * @param size размер окна, округляется вверх до степени двойки
+     */
+    UpdateIdWindow(int size) {
+        int n = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+        this.slots = new AtomicLongArray(n);
+        this.mask = n - 1;
+    }
+
+    /**
+     * Отметить id как увиденный; true, если он уже был в окне.
+     */
+    boolean isDuplicate(int id) {
+        int epoch;
+        while (true) {
+            long h = high.get();
+            int e = epochOf(h);
+            int top = idOf(h);
+            if (e == 0) {
+                if (high.compareAndSet(h, pack(1, id))) { epoch = 1; break; }
+            } else if (id > top) {
+                if (high.compareAndSet(h, pack(e, id))) { epoch = e; break; }
+            } else if ((long) top - id > RESET_GAP) {
+                if (high.compareAndSet(h, pack(e + 1, id))) {
+                    log.info("update_id dropped from {} to {}, dedup window restarted", top, id);
+                    epoch = e + 1;
+                    break;
+                }
+            } else if ((long) top - id > mask) {
+                return false;
+            } else {
+                epoch = e;
+                break;
+            }
+        }
+
+        int i = id & mask;
+        long want = pack(epoch, id);
+        while (true) {
+            long cur = slots.get(i);
+            if (cur == want) return true;
+            // слот уже занят более новым id той же эпохи: наш id выпал из окна, не затираем
+            if (epochOf(cur) == epoch && idOf(cur) > id) return false;
+            if (slots.compareAndSet(i, cur, want)) return false;
+        }
+    }
+
+    private static long pack(int epoch, int id) {
+        return ((long) epoch << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    private static int epochOf(long v) {
+        return (int) (v >>> 32);
+    }
+
+    private static int idOf(long v) {
+        return (int) v;
+    }
+}
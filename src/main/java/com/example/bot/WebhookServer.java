@@ -0,0 +1,119 @@
+package com.example.bot;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Приём апдейтов через webhook: встроенный HTTP-сервер JDK, каждый запрос — на своём виртуальном потоке.
+ * Апдейт разбирается и сразу уходит в {@link TelegramBot#onUpdateReceived}, который лишь кладёт его в очередь,
+ * поэтому 200 отдаётся быстро и Telegram может слать параллельно.
+ * Запросы без верного заголовка секрета отклоняются: иначе любой, кто достучится до порта, подделает
+ * апдейт (вплоть до successful_payment). Поэтому WEBHOOK_SECRET обязателен.
+ * Локально проверяется так:
+ * curl -X POST -H "X-Telegram-Bot-Api-Secret-Token: $WEBHOOK_SECRET" --data @update.json http://localhost:8080/telegram
+ */
+public class WebhookServer implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(WebhookServer.class);
+
+    private static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final int MAX_BODY_BYTES = 1 << 20;
+    // допустимые символы секрета по документации setWebhook
+    private static final Pattern SECRET_FORMAT = Pattern.compile("[A-Za-z0-9_-]{1,256}");
+
+    private final Env env;
+    private final TelegramBot bot;
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private HttpServer server;
+
+    public WebhookServer(Env env, TelegramBot bot) {
+        this.env = env;
+        this.bot = bot;
+    }
+
+    /**
+     * @throws IllegalStateException WEBHOOK_SECRET не задан или не подходит для setWebhook
+     */
+    public void start() throws IOException {
+        String secret = env.webhookSecret();
+        if (secret == null || !SECRET_FORMAT.matcher(secret).matches()) {
+            throw new IllegalStateException(
+                    "UPDATES_MODE=webhook requires WEBHOOK_SECRET (1-256 chars: A-Z, a-z, 0-9, _ and -)");
+        }
+        server = HttpServer.create(new InetSocketAddress(env.webhookHost(), env.webhookPort()), 0);
+        server.createContext(env.webhookPath(), this::handle);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Webhook server listening on {}:{}{}", env.webhookHost(), env.webhookPort(), env.webhookPath());
+    }
+
+    /**
+     * Сообщить Telegram адрес webhook (если WEBHOOK_URL задан; иначе его настраивают вручную).
+     */
+    public void register() throws TelegramApiException {
+        if (env.webhookUrl() == null) {
+            log.info("WEBHOOK_URL is not set, skipping setWebhook");
+            return;
+        }
+        SetWebhook set = SetWebhook.builder()
+                .url(env.webhookUrl())
+                .secretToken(env.webhookSecret())
+                .maxConnections(env.outboundMaxInFlight())
+                .build();
+        bot.execute(set);
+        log.info("Webhook registered: {}", env.webhookUrl());
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"POST".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (!secretMatches(ex.getRequestHeaders().getFirst(SECRET_HEADER))) {
+                ex.sendResponseHeaders(401, -1);
+                return;
+            }
+            Update update;
+            try (InputStream in = ex.getRequestBody()) {
+                byte[] body = in.readNBytes(MAX_BODY_BYTES);
+                update = mapper.readValue(body, Update.class);
+            } catch (IOException e) {
+                log.warn("Bad webhook payload: {}", e.getMessage());
+                ex.sendResponseHeaders(400, -1);
+                return;
+            }
+            bot.onUpdateReceived(update);
+            ex.sendResponseHeaders(200, -1);
+        }
+    }
+
+    private boolean secretMatches(String header) {
+        if (header == null || env.webhookSecret() == null) return false;
+        return MessageDigest.isEqual(header.getBytes(StandardCharsets.UTF_8),
+                env.webhookSecret().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(1);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.bot.db;
+
+/**
+ * Сохранённая рассылка. Все получатели с chat_id <= lastChatId уже обработаны;
+ * lastChatId == null — ни одна пачка ещё не записана.
+ */
+public record BroadcastJob(
+        long id,
+        long adminId,
+        String caption,
+        String media,           // строки вида "PHOTO <file_id>"
+        Long sourceChatId,      // режим copy: откуда копировать, иначе null
+        String sourceMessageIds, // режим copy: message_id через запятую
+        String segment,         // сегмент получателей, null — все
+        Long lastChatId,
+        int sent,
+        int failed,
+        int total,
+        Integer statusMessageId
+) {}
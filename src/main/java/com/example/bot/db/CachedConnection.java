@@ -0,0 +1,42 @@
+package com.example.bot.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Долгоживущее соединение с SQLite и кэшем подготовленных запросов.
+ * Не потокобезопасно: в каждый момент им владеет один поток (см. {@link Database}).
+ */
+final class CachedConnection implements AutoCloseable {
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    CachedConnection(Connection conn) {
+        this.conn = conn;
+    }
+
+    Connection raw() {
+        return conn;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null) {
+            ps = conn.prepareStatement(sql);
+            statements.put(sql, ps);
+        }
+        return ps;
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement ps : statements.values()) {
+            try { ps.close(); } catch (SQLException ignored) {}
+        }
+        statements.clear();
+        try { conn.close(); } catch (SQLException ignored) {}
+    }
+}
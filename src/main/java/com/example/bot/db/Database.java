@@ -1,338 +1,977 @@
 package com.example.bot.db;
 
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.*;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class Database {
     private static final Logger log = LoggerFactory.getLogger(Database.class);
+
+    // SQLite пишет только одним соединением, читать в WAL можно параллельно
+    private static final int READER_CONNECTIONS = 4;
+    private static final long READER_WAIT_MS = 100;
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    private static final int SUBSCRIPTION_CACHE_SIZE = 50_000;
+    private static final int RECIPIENT_PAGE_SIZE = 1000;
+    private static final int RECIPIENT_PREFETCH_PAGES = 2;
+
+    private static final MetricFamily<Histogram> DB_LATENCY =
+            Metrics.histogram("db_call_seconds", "SQLite call latency including connection/lock wait", "op");
+    private static final MetricFamily<Counter> DB_ERRORS =
+            Metrics.counter("db_errors_total", "Failed SQLite calls", "op");
+    private static final MetricFamily<Counter> SUBSCRIPTION_CACHE =
+            Metrics.counter("db_subscription_cache_total", "Subscription state lookups by cache result", "result");
+    private static final Counter CACHE_HIT = SUBSCRIPTION_CACHE.get("hit");
+    private static final Counter CACHE_MISS = SUBSCRIPTION_CACHE.get("miss");
+
     private final String url;
 
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private CachedConnection writer;
+    private final BlockingQueue<CachedConnection> readers = new ArrayBlockingQueue<>(READER_CONNECTIONS);
+    private final SubscriptionCache subscriptions = new SubscriptionCache(SUBSCRIPTION_CACHE_SIZE);
+    private final List<SubscriptionListener> listeners = new CopyOnWriteArrayList<>();
+    private UserProfileWriter profiles;
+    private volatile boolean closed;
+
+    @FunctionalInterface
+    private interface SqlCall<T> {
+        T apply(CachedConnection c) throws SQLException;
+    }
+
     public Database(String dbPath) {
         this.url = "jdbc:sqlite:" + dbPath;
     }
 
     public void init() {
-        try (Connection conn = DriverManager.getConnection(url);
-             Statement st = conn.createStatement()) {
-
-            st.execute("CREATE TABLE IF NOT EXISTS users (" +
-                    "chat_id INTEGER PRIMARY KEY," +
-                    "username TEXT," +
-                    "first_name TEXT," +
-                    "last_name TEXT," +
-                    "is_admin INTEGER DEFAULT 0," +
-                    "tag TEXT DEFAULT 'basic'," +
-                    "subscription_end TEXT," +          // годовая
-                    "subscription_active INTEGER DEFAULT 0," +
-                    "monthly_end TEXT," +               // месячная внутри годовой
-                    "monthly_active INTEGER DEFAULT 0," +
-                    "created_at TEXT," +
-                    "updated_at TEXT" +
-                    ");");
-
-            st.execute("CREATE INDEX IF NOT EXISTS idx_users_sub_end ON users(subscription_end);");
-
-            // Миграция старой схемы (если таблица уже была)
-            try { st.execute("ALTER TABLE users ADD COLUMN monthly_end TEXT;"); } catch (SQLException ignored) {}
-            try { st.execute("ALTER TABLE users ADD COLUMN monthly_active INTEGER DEFAULT 0;"); } catch (SQLException ignored) {}
-
-            // Таблица для дедупликации напоминаний
-            st.execute("CREATE TABLE IF NOT EXISTS reminders (" +
-                    "chat_id INTEGER NOT NULL," +
-                    "type TEXT NOT NULL," +        // MONTH_MINUS_3, MONTH_TODAY, YEAR_MINUS_3, YEAR_TODAY
-                    "date TEXT NOT NULL," +        // YYYY-MM-DD (день отправки напоминания)
-                    "PRIMARY KEY(chat_id, type, date)" +
-                    ");");
-
-            log.info("SQLite schema ensured.");
+        try {
+            writer = open();
+            try (Statement st = writer.raw().createStatement()) {
+
+                st.execute("CREATE TABLE IF NOT EXISTS users (" +
+                        "chat_id INTEGER PRIMARY KEY," +
+                        "username TEXT," +
+                        "first_name TEXT," +
+                        "last_name TEXT," +
+                        "is_admin INTEGER DEFAULT 0," +
+                        "tag TEXT DEFAULT 'basic'," +
+                        "subscription_end_day INTEGER," +   // годовая, LocalDate.toEpochDay()
+                        "subscription_active INTEGER DEFAULT 0," +
+                        "monthly_end_day INTEGER," +        // месячная внутри годовой
+                        "monthly_active INTEGER DEFAULT 0," +
+                        "created_at_ms INTEGER," +          // epoch millis
+                        "updated_at_ms INTEGER" +
+                        ");");
+
+                migrateUsers(st);
+
+                // Все выборки для напоминаний и /subs — диапазонный поиск по этим индексам
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_active_sub_end " +
+                        "ON users(subscription_active, subscription_end_day);");
+                st.execute("CREATE INDEX IF NOT EXISTS idx_users_active_month_end " +
+                        "ON users(subscription_active, monthly_active, monthly_end_day);");
+
+                // Таблица для дедупликации напоминаний
+                st.execute("CREATE TABLE IF NOT EXISTS reminders (" +
+                        "chat_id INTEGER NOT NULL," +
+                        "type TEXT NOT NULL," +        // MONTH_MINUS_3, MONTH_TODAY, YEAR_MINUS_3, YEAR_TODAY
+                        "date TEXT NOT NULL," +        // YYYY-MM-DD (день отправки напоминания)
+                        "PRIMARY KEY(chat_id, type, date)" +
+                        ");");
+
+                // Рассылки: задание и журнал доставок, чтобы продолжить после рестарта
+                st.execute("CREATE TABLE IF NOT EXISTS broadcast_jobs (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        "admin_id INTEGER NOT NULL," +
+                        "caption TEXT," +
+                        "media TEXT," +
+                        "status TEXT NOT NULL," +      // RUNNING, DONE
+                        "last_chat_id INTEGER," +      // NULL — ещё ни одной пачки; chat_id групп отрицательные
+                        "sent INTEGER DEFAULT 0," +
+                        "failed INTEGER DEFAULT 0," +
+                        "total INTEGER DEFAULT 0," +
+                        "status_message_id INTEGER," +
+                        "created_at TEXT," +
+                        "updated_at TEXT" +
+                        ");");
+                // режим copy: исходное сообщение, которое раздаётся copyMessage(s)
+                addColumnIfMissing(st, "broadcast_jobs", "source_chat_id", "INTEGER");
+                addColumnIfMissing(st, "broadcast_jobs", "source_message_ids", "TEXT");
+                addColumnIfMissing(st, "broadcast_jobs", "segment", "TEXT");
+                // старая схема: DEFAULT 0 вместо «нет отметки». chat_id 0 не бывает, так что 0 у незавершённых —
+                // либо не начатое задание, либо застрявшее на отрицательных id; доставленных отсеет журнал
+                st.execute("UPDATE broadcast_jobs SET last_chat_id=NULL WHERE status='RUNNING' AND last_chat_id=0");
+
+                st.execute("CREATE TABLE IF NOT EXISTS broadcast_deliveries (" +
+                        "job_id INTEGER NOT NULL," +
+                        "chat_id INTEGER NOT NULL," +
+                        "status TEXT NOT NULL," +      // SENT, FAILED
+                        "PRIMARY KEY(job_id, chat_id)" +
+                        ");");
+
+                // Журнал платежей: повторно доставленный successful_payment не применяется второй раз
+                st.execute("CREATE TABLE IF NOT EXISTS payments (" +
+                        "charge_id TEXT PRIMARY KEY," +    // telegram_payment_charge_id
+                        "provider_charge_id TEXT," +
+                        "chat_id INTEGER NOT NULL," +
+                        "kind TEXT NOT NULL," +            // YEAR, MONTH
+                        "currency TEXT," +
+                        "total_amount INTEGER," +
+                        "status TEXT NOT NULL," +          // NEW, APPLIED, REJECTED
+                        "year_end_day INTEGER," +          // сроки после применения
+                        "month_end_day INTEGER," +
+                        "created_at_ms INTEGER" +
+                        ");");
+            }
+
+            for (int i = 0; i < READER_CONNECTIONS; i++) {
+                readers.add(open());
+            }
+
+            profiles = new UserProfileWriter(this);
+
+            log.info("SQLite schema ensured (WAL, {} reader connections).", READER_CONNECTIONS);
         } catch (SQLException e) {
             throw new RuntimeException("DB init failed", e);
         }
     }
 
-    public void upsertUser(long chatId, String username, String firstName, String lastName, boolean isAdmin) {
-        String sql = "INSERT INTO users(chat_id, username, first_name, last_name, is_admin, created_at, updated_at) " +
-                "VALUES(?,?,?,?,?,?,?) " +
-                "ON CONFLICT(chat_id) DO UPDATE SET " +
-                "username=excluded.username, " +
-                "first_name=excluded.first_name, " +
-                "last_name=excluded.last_name, " +
-                "is_admin=excluded.is_admin, " +
-                "updated_at=excluded.updated_at";
-        String now = java.time.OffsetDateTime.now().toString();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, chatId);
-            ps.setString(2, username);
-            ps.setString(3, firstName);
-            ps.setString(4, lastName);
-            ps.setInt(5, isAdmin ? 1 : 0);
-            ps.setString(6, now);
-            ps.setString(7, now);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    private static final int USERS_SCHEMA_VERSION = 1;
+    private static final int BACKFILL_BATCH = 5000;
 
-    // ГОДОВАЯ ПОДПИСКА
+    /**
+     * Версия схемы хранится в PRAGMA user_version.
+     * v1: даты в users из TEXT (ISO) в INTEGER — epoch day для сроков, epoch millis для created/updated.
+     * Старые TEXT-колонки остаются как были на момент миграции, код их больше не читает и не пишет.
+     */
+    private void migrateUsers(Statement st) throws SQLException {
+        int version;
+        try (ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        if (version >= USERS_SCHEMA_VERSION) return;
 
-    public void setSubscription(long chatId, boolean active, LocalDate endDate) {
-        String sql = "UPDATE users SET subscription_active=?, subscription_end=?, updated_at=? WHERE chat_id=?";
-        String now = java.time.OffsetDateTime.now().toString();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, active ? 1 : 0);
-            ps.setString(2, endDate != null ? endDate.toString() : null);
-            ps.setString(3, now);
-            ps.setLong(4, chatId);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+        Set<String> columns = new HashSet<>();
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(users)")) {
+            while (rs.next()) columns.add(rs.getString("name"));
         }
+        if (columns.contains("subscription_end")) {
+            // совсем старая схема без месячной подписки
+            if (!columns.contains("monthly_end")) st.execute("ALTER TABLE users ADD COLUMN monthly_end TEXT;");
+            if (!columns.contains("monthly_active")) st.execute("ALTER TABLE users ADD COLUMN monthly_active INTEGER DEFAULT 0;");
+            for (String col : List.of("subscription_end_day", "monthly_end_day", "created_at_ms", "updated_at_ms")) {
+                if (!columns.contains(col)) st.execute("ALTER TABLE users ADD COLUMN " + col + " INTEGER;");
+            }
+            st.execute("DROP INDEX IF EXISTS idx_users_sub_end;");
+            st.execute("DROP INDEX IF EXISTS idx_users_month_end;");
+            backfillUsers();
+        }
+        st.execute("PRAGMA user_version = " + USERS_SCHEMA_VERSION);
     }
 
-    public void cancelSubscriptionHard(long chatId) {
-        setSubscription(chatId, false, LocalDate.now());
-        setMonthly(chatId, false, LocalDate.now());
+    private static void addColumnIfMissing(Statement st, String table, String column, String type) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equals(rs.getString("name"))) return;
+            }
+        }
+        st.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type + ";");
     }
 
-    public LocalDate getSubscriptionEnd(long chatId) {
-        String sql = "SELECT subscription_end FROM users WHERE chat_id=?";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, chatId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String v = rs.getString(1);
-                    return v == null ? null : LocalDate.parse(v);
+    /**
+     * Перенос дат короткими транзакциями по BACKFILL_BATCH строк в порядке chat_id.
+     */
+    private void backfillUsers() {
+        String next = "SELECT MAX(chat_id), COUNT(*) FROM " +
+                "(SELECT chat_id FROM users WHERE chat_id > ? ORDER BY chat_id LIMIT ?)";
+        String update = "UPDATE users SET " +
+                "subscription_end_day = CAST(julianday(subscription_end) - 2440587.5 AS INTEGER), " +
+                "monthly_end_day = CAST(julianday(monthly_end) - 2440587.5 AS INTEGER), " +
+                "created_at_ms = CAST(ROUND((julianday(created_at) - 2440587.5) * 86400000) AS INTEGER), " +
+                "updated_at_ms = CAST(ROUND((julianday(updated_at) - 2440587.5) * 86400000) AS INTEGER) " +
+                "WHERE chat_id > ? AND chat_id <= ?";
+        long started = System.nanoTime();
+        long after = Long.MIN_VALUE;
+        int total = 0;
+        while (true) {
+            long from = after;
+            long[] batch = transaction("backfillUsers", c -> {
+                PreparedStatement ps = c.prepare(next);
+                ps.setLong(1, from);
+                ps.setInt(2, BACKFILL_BATCH);
+                long last;
+                int n;
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    last = rs.getLong(1);
+                    n = rs.getInt(2);
                 }
+                if (n == 0) return null;
+                PreparedStatement up = c.prepare(update);
+                up.setLong(1, from);
+                up.setLong(2, last);
+                up.executeUpdate();
+                return new long[]{last, n};
+            });
+            if (batch == null) break;
+            after = batch[0];
+            total += (int) batch[1];
+        }
+        log.info("Migrated {} users to integer dates in {} ms",
+                total, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Сбрасывает отложенные записи профилей и закрывает соединения.
+     */
+    public void close() {
+        if (profiles != null) {
+            try {
+                profiles.close();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush user profiles on close", e);
             }
+        }
+        // дальше read()/write() падают, а не ждут соединений, которых уже не будет
+        closed = true;
+        writeLock.lock();
+        try {
+            if (writer != null) writer.close();
+            writer = null;
+        } finally {
+            writeLock.unlock();
+        }
+        CachedConnection c;
+        while ((c = readers.poll()) != null) c.close();
+    }
+
+    private CachedConnection open() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        config.setBusyTimeout(BUSY_TIMEOUT_MS);
+        return new CachedConnection(config.createConnection(url));
+    }
+
+    private <T> T read(String op, SqlCall<T> call) {
+        long started = System.nanoTime();
+        CachedConnection c;
+        try {
+            // с таймаутом: после close() свободного соединения не появится никогда
+            do {
+                checkOpen();
+                c = readers.poll(READER_WAIT_MS, TimeUnit.MILLISECONDS);
+            } while (c == null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            return call.apply(c);
         } catch (SQLException e) {
+            DB_ERRORS.get(op).inc();
             throw new RuntimeException(e);
+        } finally {
+            // соединение, взятое до close(), закрываем сами (повторная проверка — на гонку с close())
+            readers.add(c);
+            if (closed && readers.remove(c)) c.close();
+            DB_LATENCY.get(op).recordSince(started);
         }
-        return null;
     }
 
-    public boolean isSubscriptionActive(long chatId) {
-        String sql = "SELECT subscription_active FROM users WHERE chat_id=?";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, chatId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt(1) == 1;
-                }
-            }
+    // время включает ожидание лока записи: так видно и саму конкуренцию за writer
+    private <T> T write(String op, SqlCall<T> call) {
+        long started = System.nanoTime();
+        writeLock.lock();
+        try {
+            checkOpen();
+            return call.apply(writer);
         } catch (SQLException e) {
+            DB_ERRORS.get(op).inc();
             throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+            DB_LATENCY.get(op).recordSince(started);
         }
-        return false;
     }
 
-    // МЕСЯЧНАЯ ВНУТРИ ГОДОВОЙ
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Database is closed");
+    }
 
-    public void setMonthly(long chatId, boolean active, LocalDate endDate) {
-        String sql = "UPDATE users SET monthly_active=?, monthly_end=?, updated_at=? WHERE chat_id=?";
-        String now = java.time.OffsetDateTime.now().toString();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, active ? 1 : 0);
-            ps.setString(2, endDate != null ? endDate.toString() : null);
-            ps.setString(3, now);
-            ps.setLong(4, chatId);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    private <T> T transaction(String op, SqlCall<T> call) {
+        return write(op, c -> inTransaction(c, call));
+    }
+
+    private static <T> T inTransaction(CachedConnection c, SqlCall<T> call) throws SQLException {
+        Connection conn = c.raw();
+        conn.setAutoCommit(false);
+        try {
+            T result = call.apply(c);
+            conn.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
         }
     }
 
-    public LocalDate getMonthlyEnd(long chatId) {
-        String sql = "SELECT monthly_end FROM users WHERE chat_id=?";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, chatId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String v = rs.getString(1);
-                    return v == null ? null : LocalDate.parse(v);
-                }
+    public void addSubscriptionListener(SubscriptionListener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifySubscriptionChanged(long chatId) {
+        if (listeners.isEmpty()) return;
+        SubscriptionState state = getSubscriptionState(chatId);
+        for (SubscriptionListener l : listeners) {
+            try {
+                l.onSubscriptionChanged(chatId, state);
+            } catch (RuntimeException e) {
+                log.warn("Subscription listener failed", e);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
         }
-        return null;
     }
 
-    public boolean isMonthlyActive(long chatId) {
-        String sql = "SELECT monthly_active FROM users WHERE chat_id=?";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
+    private static final String UPSERT_USER_SQL =
+            "INSERT INTO users(chat_id, username, first_name, last_name, is_admin, created_at_ms, updated_at_ms) " +
+            "VALUES(?,?,?,?,?,?,?) " +
+            "ON CONFLICT(chat_id) DO UPDATE SET " +
+            "username=excluded.username, " +
+            "first_name=excluded.first_name, " +
+            "last_name=excluded.last_name, " +
+            "is_admin=excluded.is_admin, " +
+            "updated_at_ms=excluded.updated_at_ms";
+
+    /**
+     * Профиль с апдейта: без записи, если ничего не изменилось; изменения пишутся пачками в фоне.
+     */
+    public void saveUser(long chatId, String username, String firstName, String lastName, boolean isAdmin) {
+        profiles.save(new UserProfileWriter.UserProfile(chatId, username, firstName, lastName, isAdmin));
+    }
+
+    public void upsertUser(long chatId, String username, String firstName, String lastName, boolean isAdmin) {
+        long now = System.currentTimeMillis();
+        write("upsertUser", c -> {
+            PreparedStatement ps = c.prepare(UPSERT_USER_SQL);
+            bindUser(ps, chatId, username, firstName, lastName, isAdmin, now);
+            return ps.executeUpdate();
+        });
+        for (SubscriptionListener l : listeners) {
+            try {
+                l.onUserSaved(chatId);
+            } catch (RuntimeException e) {
+                log.warn("Subscription listener failed", e);
+            }
+        }
+    }
+
+    void upsertUsers(List<UserProfileWriter.UserProfile> batch) {
+        long now = System.currentTimeMillis();
+        transaction("upsertUsers", c -> {
+            PreparedStatement ps = c.prepare(UPSERT_USER_SQL);
+            for (UserProfileWriter.UserProfile p : batch) {
+                bindUser(ps, p.chatId(), p.username(), p.firstName(), p.lastName(), p.isAdmin(), now);
+                ps.addBatch();
+            }
+            return ps.executeBatch();
+        });
+    }
+
+    private static void bindUser(PreparedStatement ps, long chatId, String username, String firstName,
+                                 String lastName, boolean isAdmin, long now) throws SQLException {
+        ps.setLong(1, chatId);
+        ps.setString(2, username);
+        ps.setString(3, firstName);
+        ps.setString(4, lastName);
+        ps.setInt(5, isAdmin ? 1 : 0);
+        ps.setLong(6, now);
+        ps.setLong(7, now);
+    }
+
+    private static LocalDate getDay(ResultSet rs, int column) throws SQLException {
+        long day = rs.getLong(column);
+        return rs.wasNull() ? null : LocalDate.ofEpochDay(day);
+    }
+
+    private static void setDay(PreparedStatement ps, int index, LocalDate day) throws SQLException {
+        if (day == null) ps.setNull(index, Types.INTEGER);
+        else ps.setLong(index, day.toEpochDay());
+    }
+
+    // ПОДПИСКА: снимок одним запросом + write-through кэш
+
+    public SubscriptionState getSubscriptionState(long chatId) {
+        SubscriptionState cached = subscriptions.get(chatId);
+        if (cached != null) {
+            CACHE_HIT.inc();
+            return cached;
+        }
+        CACHE_MISS.inc();
+
+        // Промах читаем под локом записи, чтобы параллельная запись не перетёрлась устаревшим снимком
+        String sql = "SELECT subscription_active, subscription_end_day, monthly_active, monthly_end_day " +
+                "FROM users WHERE chat_id=?";
+        return write("getSubscriptionState", c -> {
+            SubscriptionState again = subscriptions.get(chatId);
+            if (again != null) return again;
+            PreparedStatement ps = c.prepare(sql);
             ps.setLong(1, chatId);
+            SubscriptionState state = SubscriptionState.NONE;
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getInt(1) == 1;
+                    state = new SubscriptionState(
+                            rs.getInt(1) == 1,
+                            getDay(rs, 2),
+                            rs.getInt(3) == 1,
+                            getDay(rs, 4));
                 }
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            subscriptions.put(chatId, state);
+            return state;
+        });
+    }
+
+    /**
+     * Для быстрых путей (pre-checkout): кэш, при промахе — соединение на чтение, лок записи не берётся.
+     * Снимок с читателя в кэш не кладётся: параллельная запись могла его уже обогнать.
+     */
+    public SubscriptionState readSubscriptionState(long chatId) {
+        SubscriptionState cached = subscriptions.get(chatId);
+        if (cached != null) {
+            CACHE_HIT.inc();
+            return cached;
         }
-        return false;
+        CACHE_MISS.inc();
+        String sql = "SELECT subscription_active, subscription_end_day, monthly_active, monthly_end_day " +
+                "FROM users WHERE chat_id=?";
+        return read("readSubscriptionState", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setLong(1, chatId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return SubscriptionState.NONE;
+                return new SubscriptionState(rs.getInt(1) == 1, getDay(rs, 2), rs.getInt(3) == 1, getDay(rs, 4));
+            }
+        });
+    }
+
+    // ОТМЕНА ПОДПИСКИ
+
+    public void cancelSubscriptionHard(long chatId, LocalDate today) {
+        String sql = "UPDATE users SET subscription_active=0, subscription_end_day=?, " +
+                "monthly_active=0, monthly_end_day=?, updated_at_ms=? WHERE chat_id=?";
+        long now = System.currentTimeMillis();
+        write("cancelSubscriptionHard", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            setDay(ps, 1, today);
+            setDay(ps, 2, today);
+            ps.setLong(3, now);
+            ps.setLong(4, chatId);
+            if (ps.executeUpdate() > 0) {
+                subscriptions.put(chatId, new SubscriptionState(false, today, false, today));
+            }
+            return null;
+        });
+        notifySubscriptionChanged(chatId);
+    }
+
+    // ПЛАТЕЖИ
+
+    public enum PaymentKind {
+        YEAR,   // год от сегодня + первый месяц
+        MONTH   // продление месяца в пределах года
+    }
+
+    public enum PaymentStatus {
+        APPLIED,
+        REJECTED    // месяц без действующего года: деньги приняты, сроки не менялись
+    }
+
+    /**
+     * Итог платежа. duplicate — charge_id уже был в журнале, возвращены записанные тогда сроки.
+     */
+    public record PaymentResult(PaymentStatus status, boolean duplicate, LocalDate yearEnd, LocalDate monthEnd) {}
+
+    private static final String RETURNING_STATE =
+            " RETURNING subscription_active, subscription_end_day, monthly_active, monthly_end_day";
+
+    // ?1 — сегодня (epoch day), ?2 — updated_at_ms, ?3 — chat_id
+    private static final String APPLY_YEAR_SQL = "UPDATE users SET " +
+            "subscription_active=1, subscription_end_day=" + plusMonthsSql("?1", 12) + ", " +
+            "monthly_active=1, monthly_end_day=MIN(" + plusMonthsSql("?1", 1) + ", " + plusMonthsSql("?1", 12) + "), " +
+            "updated_at_ms=?2 WHERE chat_id=?3" + RETURNING_STATE;
+
+    // База — текущий конец месяца, если он не в прошлом, иначе сегодня; больше конца года не продлеваем
+    private static final String APPLY_MONTH_SQL = "UPDATE users SET " +
+            "monthly_active=1, monthly_end_day=MIN(" +
+            plusMonthsSql("(CASE WHEN monthly_end_day >= ?1 THEN monthly_end_day ELSE ?1 END)", 1) +
+            ", subscription_end_day), " +
+            "updated_at_ms=?2 WHERE chat_id=?3 AND subscription_end_day >= ?1" + RETURNING_STATE;
+
+    /**
+     * day + months в epoch day с той же семантикой, что LocalDate.plusMonths:
+     * SQLite переносит 31 января + 1 месяц на 3 марта, поэтому берём минимум с последним днём целевого месяца.
+     */
+    private static String plusMonthsSql(String day, int months) {
+        String date = "date(" + day + " * 86400, 'unixepoch'";
+        return "MIN(" + epochDaySql(date + ", '+" + months + " months')") + ", " +
+                epochDaySql(date + ", 'start of month', '+" + (months + 1) + " months', '-1 day')") + ")";
+    }
+
+    private static String epochDaySql(String date) {
+        return "CAST(julianday(" + date + ") - 2440587.5 AS INTEGER)";
+    }
+
+    /**
+     * Применить платёж одной транзакцией: запись в журнал по charge_id (INSERT OR IGNORE),
+     * затем один UPDATE ... RETURNING, который сам считает новые сроки в БД.
+     * Повторная доставка того же платежа ничего не меняет и возвращает итог первой.
+     */
+    public PaymentResult applyPayment(String chargeId, String providerChargeId, long chatId, PaymentKind kind,
+                                      String currency, int totalAmount, LocalDate today) {
+        String insert = "INSERT OR IGNORE INTO payments(charge_id, provider_charge_id, chat_id, kind, currency, " +
+                "total_amount, status, created_at_ms) VALUES(?,?,?,?,?,?,'NEW',?)";
+        String recorded = "SELECT status, year_end_day, month_end_day FROM payments WHERE charge_id=?";
+        String finish = "UPDATE payments SET status=?, year_end_day=?, month_end_day=? WHERE charge_id=?";
+        long now = System.currentTimeMillis();
+
+        PaymentResult result = write("applyPayment", w -> {
+            SubscriptionState[] applied = new SubscriptionState[1];
+            PaymentResult r = inTransaction(w, c -> {
+                PreparedStatement ins = c.prepare(insert);
+                ins.setString(1, chargeId);
+                ins.setString(2, providerChargeId);
+                ins.setLong(3, chatId);
+                ins.setString(4, kind.name());
+                ins.setString(5, currency);
+                ins.setInt(6, totalAmount);
+                ins.setLong(7, now);
+                if (ins.executeUpdate() == 0) {
+                    PreparedStatement ps = c.prepare(recorded);
+                    ps.setString(1, chargeId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        PaymentStatus status = "REJECTED".equals(rs.getString(1))
+                                ? PaymentStatus.REJECTED : PaymentStatus.APPLIED;
+                        return new PaymentResult(status, true, getDay(rs, 2), getDay(rs, 3));
+                    }
+                }
+
+                PreparedStatement up = c.prepare(kind == PaymentKind.YEAR ? APPLY_YEAR_SQL : APPLY_MONTH_SQL);
+                up.setLong(1, today.toEpochDay());
+                up.setLong(2, now);
+                up.setLong(3, chatId);
+                try (ResultSet rs = up.executeQuery()) {
+                    if (rs.next()) {
+                        applied[0] = new SubscriptionState(rs.getInt(1) == 1, getDay(rs, 2),
+                                rs.getInt(3) == 1, getDay(rs, 4));
+                    }
+                }
+                SubscriptionState s = applied[0];
+                PaymentResult res = s == null
+                        ? new PaymentResult(PaymentStatus.REJECTED, false, null, null)
+                        : new PaymentResult(PaymentStatus.APPLIED, false, s.yearEnd(), s.monthEnd());
+
+                PreparedStatement fin = c.prepare(finish);
+                fin.setString(1, res.status().name());
+                setDay(fin, 2, res.yearEnd());
+                setDay(fin, 3, res.monthEnd());
+                fin.setString(4, chargeId);
+                fin.executeUpdate();
+                return res;
+            });
+            // кэш трогаем только после commit и всё ещё под локом записи
+            if (applied[0] != null) subscriptions.put(chatId, applied[0]);
+            return r;
+        });
+        if (result.status() == PaymentStatus.APPLIED && !result.duplicate()) notifySubscriptionChanged(chatId);
+        return result;
     }
 
     // СПИСКИ
 
-    public List<Long> getAllUserChatIds() {
-        List<Long> ids = new ArrayList<>();
-        String sql = "SELECT chat_id FROM users";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) ids.add(rs.getLong(1));
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return ids;
+    public int countUsers() {
+        return read("countUsers", c -> {
+            try (ResultSet rs = c.prepare("SELECT COUNT(*) FROM users").executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
     }
 
-    public List<Long> getAllSubscriberChatIdsActive() {
-        List<Long> ids = new ArrayList<>();
-        String sql = "SELECT chat_id FROM users WHERE subscription_active=1";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) ids.add(rs.getLong(1));
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return ids;
+    /**
+     * Страница chat_id после afterChatId (keyset-пагинация по первичному ключу).
+     */
+    public long[] pageUserChatIds(long afterChatId, int limit) {
+        String sql = "SELECT chat_id FROM users WHERE chat_id>? ORDER BY chat_id LIMIT ?";
+        return read("pageUserChatIds", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setLong(1, afterChatId);
+            ps.setInt(2, limit);
+            long[] page = new long[limit];
+            int n = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) page[n++] = rs.getLong(1);
+            }
+            return n == limit ? page : Arrays.copyOf(page, n);
+        });
     }
 
-    public List<String> listActiveSubscribersTagAndDate() {
-        String sql = "SELECT username, tag, subscription_end, monthly_end, monthly_active " +
-                "FROM users WHERE subscription_active=1 ORDER BY subscription_end";
-        List<String> lines = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                String username = rs.getString(1);
-                if (username == null || username.isBlank()) username = "(без username)";
-                String tag = rs.getString(2);
-                if (tag == null || tag.isBlank()) tag = "basic";
-                String yearEnd = rs.getString(3);
-                String monthEnd = rs.getString(4);
-                int monthActive = rs.getInt(5);
-
-                String yearPretty = yearEnd == null ? "—" :
-                        com.example.bot.DateUtils.formatRu(LocalDate.parse(yearEnd));
-
-                String monthStatus;
-                if (monthActive == 1 && monthEnd != null) {
-                    monthStatus = "месячная до: " +
-                            com.example.bot.DateUtils.formatRu(LocalDate.parse(monthEnd));
-                } else {
-                    monthStatus = "месячная не оплачена";
+    /**
+     * Все пользователи с chat_id > afterChatId потоком страниц с подкачкой в фоне.
+     */
+    public RecipientCursor streamUserChatIds(long afterChatId) {
+        return new PrefetchingRecipientCursor(this::pageUserChatIds, afterChatId, RECIPIENT_PAGE_SIZE, RECIPIENT_PREFETCH_PAGES);
+    }
+
+    /**
+     * Строка для индекса аудитории: тег и состояние подписки.
+     */
+    public record AudienceRow(long chatId, String tag, SubscriptionState state) {}
+
+    /**
+     * Все пользователи по возрастанию chat_id одним проходом (загрузка индекса аудитории при старте).
+     */
+    public void scanAudience(Consumer<AudienceRow> consumer) {
+        String sql = "SELECT chat_id, tag, subscription_active, subscription_end_day, monthly_active, monthly_end_day " +
+                "FROM users ORDER BY chat_id";
+        read("scanAudience", c -> {
+            try (ResultSet rs = c.prepare(sql).executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new AudienceRow(rs.getLong(1), rs.getString(2),
+                            new SubscriptionState(rs.getInt(3) == 1, getDay(rs, 4), rs.getInt(5) == 1, getDay(rs, 6))));
                 }
+            }
+            return null;
+        });
+    }
 
-                lines.add("@" + username + " (" + tag + ")\n" +
-                        "годовая до: " + yearPretty + "\n" +
-                        monthStatus);
+    /**
+     * Строка отчёта /subs.
+     */
+    public record SubscriberRow(long chatId, String username, String tag,
+                                LocalDate yearEnd, LocalDate monthEnd, boolean monthActive) {}
+
+    /**
+     * Страница активных годовых подписок в порядке (subscription_end_day, chat_id), keyset-пагинация.
+     * afterEnd == null — с начала. backward — страница перед ключом (возвращается в прямом порядке).
+     */
+    public List<SubscriberRow> pageActiveSubscribers(LocalDate afterEnd, long afterChatId, boolean backward, int limit) {
+        String sql = pageSubscribersSql(afterEnd != null, backward);
+        return read("pageActiveSubscribers", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            int i = 1;
+            if (afterEnd != null) {
+                ps.setLong(i++, afterEnd.toEpochDay());
+                ps.setLong(i++, afterChatId);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return lines;
+            ps.setInt(i, limit);
+            List<SubscriberRow> rows = new ArrayList<>(limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new SubscriberRow(
+                            rs.getLong(1),
+                            rs.getString(2),
+                            rs.getString(3),
+                            getDay(rs, 4),
+                            getDay(rs, 5),
+                            rs.getInt(6) == 1));
+                }
+            }
+            if (backward) Collections.reverse(rows);
+            return rows;
+        });
+    }
+
+    static String pageSubscribersSql(boolean keyed, boolean backward) {
+        return "SELECT chat_id, username, tag, subscription_end_day, monthly_end_day, monthly_active FROM users " +
+                "WHERE subscription_active=1 AND subscription_end_day IS NOT NULL " +
+                (!keyed ? "" : backward
+                        ? "AND (subscription_end_day, chat_id) < (?, ?) "
+                        : "AND (subscription_end_day, chat_id) > (?, ?) ") +
+                (backward
+                        ? "ORDER BY subscription_end_day DESC, chat_id DESC "
+                        : "ORDER BY subscription_end_day, chat_id ") +
+                "LIMIT ?";
     }
 
     // ПОИСК ДЛЯ НАПОМИНАНИЙ
 
-    public List<Long> findYearSubsEndingInDays(int days) {
-        LocalDate target = LocalDate.now().plusDays(days);
-        String sql = "SELECT chat_id FROM users WHERE subscription_active=1 AND subscription_end=?";
-        List<Long> ids = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, target.toString());
+    // планы запросов по индексам проверяет QueryPlanTest
+    static final String FIND_YEAR_ENDING_SQL = "SELECT chat_id, subscription_end_day FROM users " +
+            "WHERE subscription_active=1 AND subscription_end_day BETWEEN ? AND ?";
+    static final String FIND_MONTH_ENDING_SQL = "SELECT chat_id, monthly_end_day FROM users " +
+            "WHERE subscription_active=1 AND monthly_active=1 AND monthly_end_day BETWEEN ? AND ?";
+
+    /**
+     * Активные годовые подписки с концом в [from, to] — диапазон по индексу idx_users_active_sub_end.
+     */
+    public List<DueDate> findYearSubsEndingBetween(LocalDate from, LocalDate to) {
+        return readDueDates("findYearSubsEndingBetween", FIND_YEAR_ENDING_SQL, from, to);
+    }
+
+    /**
+     * Оплаченные месяцы с концом в [from, to] — диапазон по индексу idx_users_active_month_end.
+     */
+    public List<DueDate> findMonthSubsEndingBetween(LocalDate from, LocalDate to) {
+        return readDueDates("findMonthSubsEndingBetween", FIND_MONTH_ENDING_SQL, from, to);
+    }
+
+    public record DueDate(long chatId, LocalDate date) {}
+
+    private List<DueDate> readDueDates(String op, String sql, LocalDate from, LocalDate to) {
+        return read(op, c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setLong(1, from.toEpochDay());
+            ps.setLong(2, to.toEpochDay());
+            List<DueDate> due = new ArrayList<>();
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) ids.add(rs.getLong(1));
+                while (rs.next()) due.add(new DueDate(rs.getLong(1), LocalDate.ofEpochDay(rs.getLong(2))));
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return ids;
+            return due;
+        });
     }
 
-    public List<Long> findYearSubsEndingToday() {
-        LocalDate target = LocalDate.now();
-        String sql = "SELECT chat_id FROM users WHERE subscription_active=1 AND subscription_end=?";
-        List<Long> ids = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, target.toString());
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) ids.add(rs.getLong(1));
+    /**
+     * Что сделать с подпиской при захвате напоминания.
+     */
+    public enum ReminderTransition {
+        NONE,
+        EXPIRE_MONTH,   // месяц истёк: monthly_active=0
+        EXPIRE_YEAR     // год истёк: подписка отменяется целиком
+    }
+
+    /**
+     * Захватить пачку напоминаний одним INSERT OR IGNORE ... RETURNING и применить переход
+     * состояния в той же транзакции. Переход проверяет срок ещё раз внутри UPDATE: оплата,
+     * прошедшая между выборкой и захватом, уже сдвинула его, и такую подписку гасить нельзя.
+     * @return chat_id, для которых напоминание вставлено впервые (их и нужно уведомить);
+     *         для перехода — только те, чья подписка действительно погашена.
+     */
+    public long[] claimReminders(String type, LocalDate date, long[] chatIds, ReminderTransition transition) {
+        if (chatIds.length == 0) return chatIds;
+        String claim = "INSERT OR IGNORE INTO reminders(chat_id, type, date) " +
+                "SELECT value, ?, ? FROM json_each(?) RETURNING chat_id";
+        String expireMonth = "UPDATE users SET monthly_active=0, monthly_end_day=?, updated_at_ms=? " +
+                "WHERE chat_id IN (SELECT value FROM json_each(?)) AND monthly_end_day <= ? RETURNING chat_id";
+        String expireYear = "UPDATE users SET subscription_active=0, subscription_end_day=?, " +
+                "monthly_active=0, monthly_end_day=?, updated_at_ms=? " +
+                "WHERE chat_id IN (SELECT value FROM json_each(?)) AND subscription_end_day <= ? RETURNING chat_id";
+        long now = System.currentTimeMillis();
+
+        long[] claimed = write("claimReminders", w -> {
+            long[] ids = inTransaction(w, c -> {
+                PreparedStatement ps = c.prepare(claim);
+                ps.setString(1, type);
+                ps.setString(2, date.toString());
+                ps.setString(3, jsonArray(chatIds, chatIds.length));
+                long[] inserted = new long[chatIds.length];
+                int n = 0;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) inserted[n++] = rs.getLong(1);
+                }
+                inserted = Arrays.copyOf(inserted, n);
+                if (n == 0 || transition == ReminderTransition.NONE) return inserted;
+
+                PreparedStatement up;
+                if (transition == ReminderTransition.EXPIRE_MONTH) {
+                    up = c.prepare(expireMonth);
+                    setDay(up, 1, date);
+                    up.setLong(2, now);
+                    up.setString(3, jsonArray(inserted, n));
+                    setDay(up, 4, date);
+                } else {
+                    up = c.prepare(expireYear);
+                    setDay(up, 1, date);
+                    setDay(up, 2, date);
+                    up.setLong(3, now);
+                    up.setString(4, jsonArray(inserted, n));
+                    setDay(up, 5, date);
+                }
+                long[] expired = new long[n];
+                int m = 0;
+                try (ResultSet rs = up.executeQuery()) {
+                    while (rs.next()) expired[m++] = rs.getLong(1);
+                }
+                return Arrays.copyOf(expired, m);
+            });
+
+            // кэш трогаем только после commit и всё ещё под локом записи, и только для погашенных строк
+            for (long chatId : ids) {
+                if (transition == ReminderTransition.EXPIRE_MONTH) {
+                    subscriptions.update(chatId, st -> st.withMonth(false, date));
+                } else if (transition == ReminderTransition.EXPIRE_YEAR) {
+                    subscriptions.put(chatId, new SubscriptionState(false, date, false, date));
+                }
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+            return ids;
+        });
+        if (transition != ReminderTransition.NONE) {
+            for (long chatId : claimed) notifySubscriptionChanged(chatId);
         }
-        return ids;
+        return claimed;
     }
 
-    public List<Long> findMonthSubsEndingInDays(int days) {
-        LocalDate target = LocalDate.now().plusDays(days);
-        String sql = "SELECT chat_id FROM users " +
-                "WHERE subscription_active=1 AND monthly_active=1 AND monthly_end=?";
-        List<Long> ids = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, target.toString());
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) ids.add(rs.getLong(1));
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
+    private static String jsonArray(long[] ids, int n) {
+        StringBuilder sb = new StringBuilder(n * 12 + 2).append('[');
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
         }
-        return ids;
+        return sb.append(']').toString();
     }
 
-    public List<Long> findMonthSubsEndingToday() {
-        LocalDate target = LocalDate.now();
-        String sql = "SELECT chat_id FROM users " +
-                "WHERE subscription_active=1 AND monthly_active=1 AND monthly_end=?";
-        List<Long> ids = new ArrayList<>();
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, target.toString());
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) ids.add(rs.getLong(1));
+    // РАССЫЛКИ
+
+    /**
+     * @param sourceChatId     для режима copy — чат с исходным сообщением, иначе null
+     * @param sourceMessageIds для режима copy — его message_id через запятую, иначе null
+     */
+    public long createBroadcastJob(long adminId, String caption, String media, Long sourceChatId,
+                                   String sourceMessageIds, String segment, int total) {
+        String sql = "INSERT INTO broadcast_jobs(admin_id, caption, media, source_chat_id, source_message_ids, " +
+                "segment, status, total, last_chat_id, created_at, updated_at) VALUES (?,?,?,?,?,?,'RUNNING',?,NULL,?,?)";
+        String now = java.time.OffsetDateTime.now().toString();
+        return write("createBroadcastJob", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setLong(1, adminId);
+            ps.setString(2, caption);
+            ps.setString(3, media);
+            if (sourceChatId == null) ps.setNull(4, Types.INTEGER);
+            else ps.setLong(4, sourceChatId);
+            ps.setString(5, sourceMessageIds);
+            ps.setString(6, segment);
+            ps.setInt(7, total);
+            ps.setString(8, now);
+            ps.setString(9, now);
+            ps.executeUpdate();
+            try (Statement st = c.raw().createStatement();
+                 ResultSet rs = st.executeQuery("SELECT last_insert_rowid()")) {
+                rs.next();
+                return rs.getLong(1);
             }
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-        return ids;
+        });
+    }
+
+    public void setBroadcastStatusMessage(long jobId, int messageId) {
+        String sql = "UPDATE broadcast_jobs SET status_message_id=? WHERE id=?";
+        write("setBroadcastStatusMessage", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setInt(1, messageId);
+            ps.setLong(2, jobId);
+            return ps.executeUpdate();
+        });
     }
 
     /**
-     * Отметить напоминание как отправленное ОДИН РАЗ в конкретный день.
-     * @return true, если запись вставлена впервые (т.е. сегодня ещё не отправляли этот тип).
+     * Записать пачку доставок и продвинуть last_chat_id одной транзакцией.
+     * Первая пачка задаёт отметку, дальше она только растёт.
      */
-    public boolean markReminderOnce(long chatId, String type, LocalDate date) {
-        String sql = "INSERT OR IGNORE INTO reminders(chat_id, type, date) VALUES (?,?,?)";
-        try (Connection conn = DriverManager.getConnection(url);
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, chatId);
-            ps.setString(2, type);
-            ps.setString(3, date.toString());
-            int inserted = ps.executeUpdate();
-            return inserted == 1;
-        } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
+    public void checkpointBroadcast(long jobId, long[] chatIds, boolean[] ok, int n, long lastChatId) {
+        String insert = "INSERT OR REPLACE INTO broadcast_deliveries(job_id, chat_id, status) VALUES (?,?,?)";
+        String update = "UPDATE broadcast_jobs SET sent=sent+?, failed=failed+?, " +
+                "last_chat_id=MAX(COALESCE(last_chat_id, ?), ?), updated_at=? WHERE id=?";
+        String now = java.time.OffsetDateTime.now().toString();
+        transaction("checkpointBroadcast", c -> {
+            PreparedStatement ps = c.prepare(insert);
+            int sent = 0;
+            for (int i = 0; i < n; i++) {
+                ps.setLong(1, jobId);
+                ps.setLong(2, chatIds[i]);
+                ps.setString(3, ok[i] ? "SENT" : "FAILED");
+                ps.addBatch();
+                if (ok[i]) sent++;
+            }
+            ps.executeBatch();
+
+            PreparedStatement up = c.prepare(update);
+            up.setInt(1, sent);
+            up.setInt(2, n - sent);
+            up.setLong(3, lastChatId);
+            up.setLong(4, lastChatId);
+            up.setString(5, now);
+            up.setLong(6, jobId);
+            up.executeUpdate();
+            return null;
+        });
+    }
+
+    public void finishBroadcastJob(long jobId) {
+        String sql = "UPDATE broadcast_jobs SET status='DONE', updated_at=? WHERE id=?";
+        String now = java.time.OffsetDateTime.now().toString();
+        write("finishBroadcastJob", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setString(1, now);
+            ps.setLong(2, jobId);
+            return ps.executeUpdate();
+        });
+    }
+
+    public List<BroadcastJob> findRunningBroadcastJobs() {
+        String sql = "SELECT id, admin_id, caption, media, last_chat_id, sent, failed, total, status_message_id, " +
+                "source_chat_id, source_message_ids, segment FROM broadcast_jobs WHERE status='RUNNING' ORDER BY id";
+        return read("findRunningBroadcastJobs", c -> {
+            List<BroadcastJob> jobs = new ArrayList<>();
+            try (ResultSet rs = c.prepare(sql).executeQuery()) {
+                while (rs.next()) {
+                    long lastChatId = rs.getLong(5);
+                    boolean noCheckpoint = rs.wasNull();
+                    int statusMessageId = rs.getInt(9);
+                    boolean noStatusMessage = rs.wasNull();
+                    long sourceChatId = rs.getLong(10);
+                    boolean noSource = rs.wasNull();
+                    jobs.add(new BroadcastJob(
+                            rs.getLong(1),
+                            rs.getLong(2),
+                            rs.getString(3),
+                            rs.getString(4),
+                            noSource ? null : sourceChatId,
+                            rs.getString(11),
+                            rs.getString(12),
+                            noCheckpoint ? null : lastChatId,
+                            rs.getInt(6),
+                            rs.getInt(7),
+                            rs.getInt(8),
+                            noStatusMessage ? null : statusMessageId));
+                }
+            }
+            return jobs;
+        });
+    }
+
+    /**
+     * Получатели с chat_id > lastChatId, которым задание уже доставлено (хвост недописанной пачки).
+     */
+    public Set<Long> findBroadcastDeliveredAfter(long jobId, long lastChatId) {
+        String sql = "SELECT chat_id FROM broadcast_deliveries WHERE job_id=? AND chat_id>?";
+        return read("findBroadcastDeliveredAfter", c -> {
+            PreparedStatement ps = c.prepare(sql);
+            ps.setLong(1, jobId);
+            ps.setLong(2, lastChatId);
+            Set<Long> ids = new HashSet<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(rs.getLong(1));
+            }
+            return ids;
+        });
     }
-}
\ No newline at end of file
+}
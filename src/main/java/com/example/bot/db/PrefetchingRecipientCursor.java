@@ -0,0 +1,61 @@
+package com.example.bot.db;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keyset-пагинация по chat_id с подкачкой следующих страниц в фоне,
+ * чтобы отправка начиналась с первой страницы, пока читаются остальные.
+ */
+final class PrefetchingRecipientCursor implements RecipientCursor {
+    private static final long[] END = new long[0];
+
+    @FunctionalInterface
+    interface PageQuery {
+        long[] page(long afterChatId, int limit);
+    }
+
+    private final BlockingQueue<Object> pages;
+    private final Thread fetcher;
+    private boolean finished;
+
+    PrefetchingRecipientCursor(PageQuery query, long afterChatId, int pageSize, int prefetchPages) {
+        this.pages = new ArrayBlockingQueue<>(prefetchPages);
+        this.fetcher = Thread.ofVirtual().name("recipient-cursor").start(() -> {
+            long after = afterChatId;
+            try {
+                while (true) {
+                    long[] page = query.page(after, pageSize);
+                    if (page.length == 0) break;
+                    pages.put(page);
+                    if (page.length < pageSize) break;
+                    after = page[page.length - 1];
+                }
+                pages.put(END);
+            } catch (InterruptedException ignored) {
+                // курсор закрыт
+            } catch (RuntimeException e) {
+                try { pages.put(e); } catch (InterruptedException ignored) {}
+            }
+        });
+    }
+
+    @Override
+    public long[] nextPage() throws InterruptedException {
+        if (finished) return END;
+        Object next = pages.take();
+        if (next instanceof RuntimeException e) {
+            finished = true;
+            throw e;
+        }
+        long[] page = (long[]) next;
+        if (page.length == 0) finished = true;
+        return page;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        fetcher.interrupt();
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.bot.db;
+
+/**
+ * Поток получателей страницами chat_id по возрастанию.
+ */
+public interface RecipientCursor extends AutoCloseable {
+
+    /** Следующая страница; пустой массив — получатели закончились. */
+    long[] nextPage() throws InterruptedException;
+
+    @Override
+    default void close() {}
+}
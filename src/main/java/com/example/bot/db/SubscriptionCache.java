@@ -0,0 +1,34 @@
+package com.example.bot.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Ограниченный LRU-кэш состояний подписки по chat_id.
+ * Заполняется при чтении и обновляется при каждой записи в {@link Database}.
+ */
+final class SubscriptionCache {
+    private final LinkedHashMap<Long, SubscriptionState> map;
+
+    SubscriptionCache(int capacity) {
+        this.map = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SubscriptionState> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized SubscriptionState get(long chatId) {
+        return map.get(chatId);
+    }
+
+    synchronized void put(long chatId, SubscriptionState state) {
+        map.put(chatId, state);
+    }
+
+    synchronized void update(long chatId, UnaryOperator<SubscriptionState> fn) {
+        map.computeIfPresent(chatId, (k, s) -> fn.apply(s));
+    }
+}
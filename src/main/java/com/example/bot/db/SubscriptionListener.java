@@ -0,0 +1,12 @@
+package com.example.bot.db;
+
+/**
+ * Уведомление об изменении подписки; вызывается после commit, вне лока записи.
+ */
+@FunctionalInterface
+public interface SubscriptionListener {
+    void onSubscriptionChanged(long chatId, SubscriptionState state);
+
+    /** Строка пользователя записана впервые за процесс (возможно, она уже была в базе). */
+    default void onUserSaved(long chatId) {}
+}
@@ -0,0 +1,19 @@
+package com.example.bot.db;
+
+import java.time.LocalDate;
+
+/**
+ * Снимок подписки пользователя: годовая и месячная внутри неё.
+ */
+public record SubscriptionState(
+        boolean yearActive,
+        LocalDate yearEnd,
+        boolean monthActive,
+        LocalDate monthEnd
+) {
+    public static final SubscriptionState NONE = new SubscriptionState(false, null, false, null);
+
+    public SubscriptionState withMonth(boolean active, LocalDate end) {
+        return new SubscriptionState(yearActive, yearEnd, active, end);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.bot.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Отложенная запись профилей пользователей.
+ * Отпечаток (хэш username/имени/флага админа) хранится в памяти: неизменившийся профиль не пишется вовсе.
+ * Первое появление чата в процессе пишется сразу — строка users должна существовать до оплаты и рассылок.
+ * Остальные изменения копятся (последнее на чат) и сбрасываются одной транзакцией раз в FLUSH_INTERVAL_MS
+ * или при накоплении FLUSH_BATCH строк.
+ */
+final class UserProfileWriter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(UserProfileWriter.class);
+
+    private static final long FLUSH_INTERVAL_MS = 250;
+    private static final int FLUSH_BATCH = 256;
+    private static final int MAX_FINGERPRINTS = 500_000;
+
+    record UserProfile(long chatId, String username, String firstName, String lastName, boolean isAdmin) {
+        long fingerprint() {
+            long h = 1125899906842597L;
+            h = 31 * h + hash(username);
+            h = 31 * h + hash(firstName);
+            h = 31 * h + hash(lastName);
+            return 31 * h + (isAdmin ? 1 : 0);
+        }
+
+        private static long hash(String s) {
+            return s == null ? 0 : s.hashCode() * 0x9E3779B97F4A7C15L + s.length();
+        }
+    }
+
+    private final Database db;
+    private final Map<Long, Long> fingerprints = new ConcurrentHashMap<>();
+    private final Map<Long, UserProfile> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "user-profile-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    UserProfileWriter(Database db) {
+        this.db = db;
+        flusher.scheduleWithFixedDelay(this::flushSafe, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void save(UserProfile profile) {
+        long fp = profile.fingerprint();
+        Long known = fingerprints.put(profile.chatId(), fp);
+        if (known != null && known == fp) return;
+        if (known == null) {
+            if (fingerprints.size() > MAX_FINGERPRINTS) {
+                // крайне редкий случай: проще забыть всё, чем вести LRU на горячем пути
+                fingerprints.clear();
+                fingerprints.put(profile.chatId(), fp);
+            }
+            pending.remove(profile.chatId());
+            try {
+                db.upsertUser(profile.chatId(), profile.username(), profile.firstName(),
+                        profile.lastName(), profile.isAdmin());
+            } catch (RuntimeException e) {
+                // строки нет — следующий апдейт этого чата должен снова пойти синхронной записью
+                fingerprints.remove(profile.chatId(), fp);
+                throw e;
+            }
+            return;
+        }
+        pending.put(profile.chatId(), profile);
+        if (pending.size() >= FLUSH_BATCH) flusher.execute(this::flushSafe);
+    }
+
+    /**
+     * Записать всё накопленное. Безопасно вызывать из любого потока.
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            while (!pending.isEmpty()) {
+                List<UserProfile> batch = new ArrayList<>(Math.min(pending.size(), FLUSH_BATCH * 4));
+                for (Long chatId : pending.keySet()) {
+                    UserProfile p = pending.remove(chatId);
+                    if (p != null) batch.add(p);
+                }
+                if (batch.isEmpty()) return;
+                try {
+                    db.upsertUsers(batch);
+                } catch (RuntimeException e) {
+                    // вернуть в буфер, если за это время не пришло что-то новее
+                    for (UserProfile p : batch) pending.putIfAbsent(p.chatId(), p);
+                    throw e;
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushSafe() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("User profile flush failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.bot.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Монотонный счётчик на LongAdder: инкремент из многих потоков без общей точки конкуренции.
+ */
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long n) {
+        value.add(n);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
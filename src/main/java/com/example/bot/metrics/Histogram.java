@@ -0,0 +1,70 @@
+package com.example.bot.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Лог-линейная гистограмма длительностей в наносекундах (в духе HDR):
+ * каждая степень двойки делится на 8 корзин, относительная ошибка не больше 12.5%.
+ * Запись — один индекс без ветвлений по границам и три атомарных инкремента, без аллокаций.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 42;     // 2^42 нс ≈ 73 минуты, дальше — в последнюю корзину
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    public void recordSince(long startedNanos) {
+        record(System.nanoTime() - startedNanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * Сколько значений не больше bound (с точностью до корзины).
+     */
+    public long countAtMost(long boundNanos) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (upperBound(i) > boundNanos) break;
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    static int index(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        if (exp > MAX_EXP) return BUCKETS - 1;
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Исключающая верхняя граница корзины i в наносекундах.
+     */
+    static long upperBound(int i) {
+        if (i < SUB_COUNT) return i + 1;
+        int exp = i / SUB_COUNT + SUB_BITS - 1;
+        int sub = i % SUB_COUNT;
+        long width = 1L << (exp - SUB_BITS);
+        return ((long) (SUB_COUNT + sub) << (exp - SUB_BITS)) + width;
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.bot.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Метрика с одной (необязательной) меткой: по значению метки — свой счётчик или гистограмма.
+ * get() без аллокаций, если значение метки уже встречалось.
+ */
+public final class MetricFamily<M> {
+    final String name;
+    final String help;
+    final String type;
+    final String labelName;
+    final Map<String, M> children = new ConcurrentHashMap<>();
+    private final Supplier<M> factory;
+
+    MetricFamily(String name, String help, String type, String labelName, Supplier<M> factory) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.labelName = labelName;
+        this.factory = factory;
+    }
+
+    public M get(String labelValue) {
+        M m = children.get(labelValue);
+        if (m != null) return m;
+        return children.computeIfAbsent(labelValue, k -> factory.get());
+    }
+
+    /**
+     * Метрика без метки.
+     */
+    public M get() {
+        return get("");
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.bot.metrics;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Реестр метрик процесса и вывод в текстовом формате Prometheus.
+ * Метрики регистрируются один раз (обычно в static final полях) и дальше пишутся без блокировок.
+ */
+public final class Metrics {
+    // Границы корзин гистограмм при экспорте, в секундах
+    private static final double[] EXPORT_BOUNDS = {
+            0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+
+    private static final Map<String, MetricFamily<?>> FAMILIES = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    private record Gauge(String name, String help, DoubleSupplier value) {}
+
+    private Metrics() {}
+
+    public static MetricFamily<Counter> counter(String name, String help, String labelName) {
+        return family(name, help, "counter", labelName, Counter::new);
+    }
+
+    public static Counter counter(String name, String help) {
+        return counter(name, help, null).get();
+    }
+
+    public static MetricFamily<Histogram> histogram(String name, String help, String labelName) {
+        return family(name, help, "histogram", labelName, Histogram::new);
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, help, null).get();
+    }
+
+    /**
+     * Значение, которое считывается в момент экспорта (длина очереди и т.п.).
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        GAUGES.put(name, new Gauge(name, help, value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <M> MetricFamily<M> family(String name, String help, String type, String labelName,
+                                              Supplier<M> factory) {
+        MetricFamily<?> f = FAMILIES.computeIfAbsent(name,
+                n -> new MetricFamily<>(n, help, type, labelName, factory));
+        if (!f.type.equals(type)) throw new IllegalArgumentException("Metric " + name + " is a " + f.type);
+        return (MetricFamily<M>) f;
+    }
+
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+        for (MetricFamily<?> f : new TreeMap<>(FAMILIES).values()) {
+            header(sb, f.name, f.help, f.type);
+            for (Map.Entry<String, ?> e : new TreeMap<>(f.children).entrySet()) {
+                String label = f.labelName == null || e.getKey().isEmpty()
+                        ? ""
+                        : f.labelName + "=\"" + escape(e.getKey()) + "\"";
+                if (e.getValue() instanceof Counter c) {
+                    sample(sb, f.name, label, c.get());
+                } else if (e.getValue() instanceof Histogram h) {
+                    writeHistogram(sb, f.name, label, h);
+                }
+            }
+        }
+        List<Gauge> gauges = new ArrayList<>(GAUGES.values());
+        gauges.sort((a, b) -> a.name().compareTo(b.name()));
+        for (Gauge g : gauges) {
+            header(sb, g.name(), g.help(), "gauge");
+            sample(sb, g.name(), "", g.value().getAsDouble());
+        }
+        return sb.toString();
+    }
+
+    private static void writeHistogram(StringBuilder sb, String name, String label, Histogram h) {
+        String sep = label.isEmpty() ? "" : label + ",";
+        for (double bound : EXPORT_BOUNDS) {
+            long n = h.countAtMost((long) (bound * 1e9));
+            sample(sb, name + "_bucket", sep + "le=\"" + format(bound) + "\"", n);
+        }
+        long count = h.count();
+        sample(sb, name + "_bucket", sep + "le=\"+Inf\"", count);
+        sample(sb, name + "_sum", label, h.sumSeconds());
+        sample(sb, name + "_count", label, count);
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) return "NaN";
+        if (Double.isInfinite(v)) return v > 0 ? "+Inf" : "-Inf";
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return BigDecimal.valueOf(v).stripTrailingZeros().toPlainString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,25 +1,63 @@
 package com.example.bot.payment;
 
 import com.example.bot.Env;
+import com.example.bot.PreparedMessage;
 import com.example.bot.db.Database;
 import com.example.bot.TelegramBot;
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.methods.AnswerPreCheckoutQuery;
+import org.telegram.telegrambots.meta.api.methods.invoices.CreateInvoiceLink;
 import org.telegram.telegrambots.meta.api.methods.send.SendInvoice;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.objects.payments.LabeledPrice;
+import org.telegram.telegrambots.meta.api.objects.payments.PreCheckoutQuery;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
+import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
-import java.util.ArrayList;
+import java.math.BigDecimal;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PaymentService {
     private static final Logger log = LoggerFactory.getLogger(PaymentService.class);
 
+    private static final Histogram PRE_CHECKOUT_LATENCY = Metrics.histogram("pre_checkout_seconds",
+            "Time from receiving a pre-checkout query to Telegram accepting the answer");
+    private static final MetricFamily<Counter> PRE_CHECKOUT =
+            Metrics.counter("pre_checkout_total", "Pre-checkout answers by result", "result");
+    private static final Counter PRE_CHECKOUT_SLOW = Metrics.counter("pre_checkout_slow_total",
+            "Pre-checkout answers slower than the warning threshold");
+
+    // Telegram ждёт ответ 10 секунд, дальше платёж отменяется
+    private static final long PRE_CHECKOUT_DEADLINE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long PRE_CHECKOUT_WARN_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int PRE_CHECKOUT_THREADS = 2;
+
     private final Env env;
     private final Database db;
     private final TelegramBot bot;
+    private final Map<Invoice, CompletableFuture<PreparedMessage>> invoiceLinks = new ConcurrentHashMap<>();
+
+    // Отдельные потоки с высоким приоритетом: не стоят в очередях апдейтов и за лимитом исходящих запросов
+    private final AtomicInteger laneThreads = new AtomicInteger();
+    private final ExecutorService preCheckoutLane = Executors.newFixedThreadPool(PRE_CHECKOUT_THREADS, r -> {
+        Thread t = new Thread(r, "pre-checkout-" + laneThreads.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.MAX_PRIORITY);
+        return t;
+    });
 
     public PaymentService(Env env, Database db, TelegramBot bot) {
         this.env = env;
@@ -27,86 +65,168 @@ public class PaymentService {
         this.bot = bot;
     }
 
-    // Годовая подписка 2 900 ₽
-    public void sendYearInvoice(long chatId) {
-        List<LabeledPrice> prices = new ArrayList<>();
-        prices.add(new LabeledPrice("Годовая подписка", env.priceYearRubKopeks()));
-
-        SendInvoice inv = SendInvoice.builder()
-                .chatId(Long.toString(chatId))
-                .title("💳 Подписка на 1 год")
-                .description("Подписка на вечные очки: первый платёж 3900 ₽ за год, далее 390 ₽ в месяц до конца срока.")
-                .payload("subscribe_year_1")
-                .providerToken(env.providerToken())
-                .currency("RUB")
-                .prices(prices)
-                .startParameter("subscribe_year")
-                .needEmail(false)
-                .needName(false)
-                .isFlexible(false)
-                .build();
-        try {
-            bot.execute(inv);
-        } catch (TelegramApiException e) {
-            log.error("sendYearInvoice failed", e);
-            try {
-                bot.execute(SendMessage.builder()
-                        .chatId(Long.toString(chatId))
-                        .text("⚠️ Ошибка при создании счёта на годовую подписку. Попробуйте позже.")
-                        .build());
-            } catch (TelegramApiException ignored) {}
+    /**
+     * Всё, из чего собирается счёт; в режиме link это же — ключ кэша ссылок,
+     * так что смена цены или токена провайдера даёт новую ссылку.
+     */
+    private record Invoice(String payload, String title, String description, String label,
+                           String currency, int amount, String providerToken, String startParameter) {}
+
+    private Invoice yearInvoice() {
+        return new Invoice("subscribe_year_1", "💳 Подписка на 1 год",
+                "Подписка на вечные очки: первый платёж 3900 ₽ за год, далее 390 ₽ в месяц до конца срока.",
+                "Годовая подписка", "RUB", env.priceYearRubKopeks(), env.providerToken(), "subscribe_year");
+    }
+
+    private Invoice monthInvoice() {
+        return new Invoice("subscribe_month_1", "💳 Месячная оплата 390 ₽",
+                "Оплата месяца обслуживания в рамках вашей годовой подписки на вечные очки.",
+                "Месячная оплата", "RUB", env.priceMonthRubKopeks(), env.providerToken(), "subscribe_month");
+    }
+
+    // Годовая подписка 2 900 ₽; future завершается, когда счёт отправлен (или не удалось)
+    public CompletableFuture<?> sendYearInvoice(long chatId) {
+        return sendInvoice(chatId, yearInvoice(), "⚠️ Ошибка при создании счёта на годовую подписку. Попробуйте позже.");
+    }
+
+    public CompletableFuture<?> sendMonthInvoice(long chatId) {
+        if (!db.readSubscriptionState(chatId).yearActive()) {
+            bot.send(SendMessage.builder()
+                    .chatId(Long.toString(chatId))
+                    .text("⚠️ Месячная оплата 390 ₽ доступна только при активной годовой подписке за 3900 ₽.\n" +
+                            "Сначала оформите годовую подписку.")
+                    .build());
+            return CompletableFuture.completedFuture(null);
         }
+        return sendInvoice(chatId, monthInvoice(), "⚠️ Ошибка при создании счёта на месяц. Попробуйте позже.");
     }
 
-    public void sendMonthInvoice(long chatId) {
-        if (!db.isSubscriptionActive(chatId)) {
-            try {
-                bot.execute(SendMessage.builder()
+    private CompletableFuture<?> sendInvoice(long chatId, Invoice invoice, String errorText) {
+        CompletableFuture<?> sent = env.invoiceLinks()
+                ? invoiceLinkMessage(invoice).thenCompose(m -> bot.sendAsync(m.to(chatId)))
+                : bot.sendAsync(SendInvoice.builder()
                         .chatId(Long.toString(chatId))
-                        .text("⚠️ Месячная оплата 390 ₽ доступна только при активной годовой подписке за 3900 ₽.\n" +
-                                "Сначала оформите годовую подписку.")
+                        .title(invoice.title())
+                        .description(invoice.description())
+                        .payload(invoice.payload())
+                        .providerToken(invoice.providerToken())
+                        .currency(invoice.currency())
+                        .prices(List.of(new LabeledPrice(invoice.label(), invoice.amount())))
+                        .startParameter(invoice.startParameter())
+                        .needEmail(false)
+                        .needName(false)
+                        .isFlexible(false)
                         .build());
-            } catch (TelegramApiException ignored) {}
-            return;
-        }
+        return sent.exceptionally(e -> {
+            log.error("Invoice {} for {} failed", invoice.payload(), chatId, TelegramBot.unwrap(e));
+            bot.send(SendMessage.builder()
+                    .chatId(Long.toString(chatId))
+                    .text(errorText)
+                    .build());
+            return null;
+        });
+    }
+
+    /**
+     * Сообщение с URL-кнопкой на ссылку счёта: createInvoiceLink один раз на конфигурацию цены,
+     * дальше готовое сообщение, в которое подставляется только chat_id.
+     * Неудачная попытка не кэшируется — следующий запрос создаст ссылку заново.
+     */
+    private CompletableFuture<PreparedMessage> invoiceLinkMessage(Invoice invoice) {
+        CompletableFuture<PreparedMessage> created = new CompletableFuture<>();
+        CompletableFuture<PreparedMessage> existing = invoiceLinks.putIfAbsent(invoice, created);
+        if (existing != null) return existing;
+
+        // ссылки на прежнюю цену того же счёта больше не нужны
+        invoiceLinks.keySet().removeIf(k -> k.payload().equals(invoice.payload()) && !k.equals(invoice));
+        log.info("Creating invoice link for {} ({} {})", invoice.payload(), invoice.amount(), invoice.currency());
+        bot.sendAsync(CreateInvoiceLink.builder()
+                        .title(invoice.title())
+                        .description(invoice.description())
+                        .payload(invoice.payload())
+                        .providerToken(invoice.providerToken())
+                        .currency(invoice.currency())
+                        .price(new LabeledPrice(invoice.label(), invoice.amount()))
+                        .needEmail(false)
+                        .needName(false)
+                        .isFlexible(false)
+                        .build())
+                .whenComplete((url, e) -> {
+                    if (e != null) {
+                        invoiceLinks.remove(invoice, created);
+                        created.completeExceptionally(e);
+                        return;
+                    }
+                    created.complete(PreparedMessage.of(SendMessage.builder()
+                            .chatId("0")
+                            .text(invoice.title() + "\n\n" + invoice.description())
+                            .replyMarkup(InlineKeyboardMarkup.builder()
+                                    .keyboardRow(List.of(InlineKeyboardButton.builder()
+                                            .text("💳 Оплатить " + BigDecimal.valueOf(invoice.amount(), 2)
+                                                    .stripTrailingZeros().toPlainString() + " ₽")
+                                            .url(url)
+                                            .build()))
+                                    .build())
+                            .build()));
+                });
+        return created;
+    }
 
-        List<LabeledPrice> prices = new ArrayList<>();
-        prices.add(new LabeledPrice("Месячная оплата", env.priceMonthRubKopeks()));
-
-        SendInvoice inv = SendInvoice.builder()
-                .chatId(Long.toString(chatId))
-                .title("💳 Месячная оплата 390 ₽")
-                .description("Оплата месяца обслуживания в рамках вашей годовой подписки на вечные очки.")
-                .payload("subscribe_month_1")
-                .providerToken(env.providerToken())
-                .currency("RUB")
-                .prices(prices)
-                .startParameter("subscribe_month")
-                .needEmail(false)
-                .needName(false)
-                .isFlexible(false)
-                .build();
+    /**
+     * Поставить pre-checkout в быструю полосу.
+     * @param receivedNanos System.nanoTime() получения апдейта — от него считается задержка ответа
+     */
+    public void submitPreCheckout(PreCheckoutQuery query, long receivedNanos) {
+        preCheckoutLane.execute(() -> answerPreCheckout(query, receivedNanos));
+    }
+
+    private void answerPreCheckout(PreCheckoutQuery query, long receivedNanos) {
+        String error = null;
+        String result;
         try {
-            bot.execute(inv);
-        } catch (TelegramApiException e) {
-            log.error("sendMonthInvoice failed", e);
-            try {
-                bot.execute(SendMessage.builder()
-                        .chatId(Long.toString(chatId))
-                        .text("⚠️ Ошибка при создании счёта на месяц. Попробуйте позже.")
-                        .build());
-            } catch (TelegramApiException ignored) {}
+            error = checkPreCheckout(query);
+            // синхронный вызов мимо семафора sendAsync: рассылка не должна занимать слот ответа
+            bot.execute(AnswerPreCheckoutQuery.builder()
+                    .preCheckoutQueryId(query.getId())
+                    .ok(error == null)
+                    .errorMessage(error)
+                    .build());
+            result = error == null ? "ok" : "rejected";
+        } catch (TelegramApiException | RuntimeException e) {
+            log.error("Pre-checkout answer for {} failed", query.getFrom().getId(), e);
+            result = "failed";
+        }
+
+        long elapsed = System.nanoTime() - receivedNanos;
+        PRE_CHECKOUT_LATENCY.record(elapsed);
+        PRE_CHECKOUT.get(result).inc();
+        if (elapsed >= PRE_CHECKOUT_WARN_NANOS) {
+            PRE_CHECKOUT_SLOW.inc();
+            if (elapsed >= PRE_CHECKOUT_DEADLINE_NANOS) {
+                log.error("Pre-checkout for {} answered after the deadline: {} ms",
+                        query.getFrom().getId(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+            } else {
+                log.warn("Pre-checkout for {} answered close to the deadline: {} ms",
+                        query.getFrom().getId(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+            }
         }
     }
 
-    public void answerPreCheckout(String preCheckoutQueryId, boolean ok, String error) {
-        AnswerPreCheckoutQuery ans = AnswerPreCheckoutQuery.builder()
-                .preCheckoutQueryId(preCheckoutQueryId)
-                .ok(ok)
-                .errorMessage(error)
-                .build();
-        try {
-            bot.execute(ans);
-        } catch (TelegramApiException ignored) {}
+    /**
+     * Проверка счёта перед списанием: кэш подписок или соединение на чтение, без лока записи.
+     * @return текст отказа или null, если платёж можно принимать
+     */
+    private String checkPreCheckout(PreCheckoutQuery query) {
+        String payload = query.getInvoicePayload();
+        if ("subscribe_year_1".equals(payload)) {
+            return null;
+        }
+        if ("subscribe_month_1".equals(payload)) {
+            if (!db.readSubscriptionState(query.getFrom().getId()).yearActive()) {
+                return "Месячная оплата доступна только при активной годовой подписке.";
+            }
+            return null;
+        }
+        return "Счёт устарел, запросите новый.";
     }
-}
\ No newline at end of file
+}
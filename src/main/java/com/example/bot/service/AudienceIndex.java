@@ -0,0 +1,249 @@
+package com.example.bot.service;
+
+import com.example.bot.db.Database;
+import com.example.bot.db.RecipientCursor;
+import com.example.bot.db.SubscriptionListener;
+import com.example.bot.db.SubscriptionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Индекс аудитории в памяти для сегментов рассылки.
+ * Каждому chat_id выдаётся плотный номер, признаки хранятся битовыми масками по этим номерам
+ * (бит на пользователя), поэтому подсчёт сегмента — несколько AND по словам, без запроса к users.
+ * Загружается один раз при старте, дальше обновляется через {@link SubscriptionListener}.
+ * Тег читается только при загрузке: бот сам его не меняет.
+ */
+public class AudienceIndex implements SubscriptionListener {
+    private static final Logger log = LoggerFactory.getLogger(AudienceIndex.class);
+
+    private static final int NO_DAY = Integer.MIN_VALUE;
+    private static final String DEFAULT_TAG = "basic";
+    private static final int PAGE_SIZE = 1000;
+
+    private final Database db;
+    private final ZoneId zone;
+
+    private final ChatIdMap numbers = new ChatIdMap();
+    private long[] chatIds = new long[1024];
+    private int[] yearEnd = new int[1024];   // epoch day, NO_DAY — нет
+    private int size;
+    private final BitSet all = new BitSet();
+    private final BitSet yearActive = new BitSet();
+    private final BitSet monthActive = new BitSet();
+    private final Map<String, BitSet> tags = new HashMap<>();
+    // номера по дню окончания года: сегмент «истекает в ближайшие N дней» не перебирает всех
+    private final TreeMap<Integer, DayBucket> byYearEnd = new TreeMap<>();
+
+    public AudienceIndex(Database db, ZoneId zone) {
+        this.db = db;
+        this.zone = zone;
+    }
+
+    public void load() {
+        long started = System.nanoTime();
+        // сначала подписка на изменения: событие во время загрузки новее строки из скана
+        db.addSubscriptionListener(this);
+        db.scanAudience(row -> {
+            synchronized (this) {
+                int n = numbers.get(row.chatId());
+                if (n < 0) {
+                    apply(add(row.chatId(), row.tag()), row.state());
+                } else {
+                    // чат уже завело событие: состояние у него новее, а тег знает только строка
+                    retag(n, row.tag());
+                }
+            }
+        });
+        log.info("Audience index loaded: {} users in {} ms",
+                size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    @Override
+    public synchronized void onSubscriptionChanged(long chatId, SubscriptionState state) {
+        int n = numbers.get(chatId);
+        if (n < 0) n = add(chatId, DEFAULT_TAG);
+        apply(n, state);
+    }
+
+    @Override
+    public synchronized void onUserSaved(long chatId) {
+        if (numbers.get(chatId) < 0) add(chatId, DEFAULT_TAG);
+    }
+
+    public synchronized int count(Segment segment) {
+        return resolve(segment).cardinality();
+    }
+
+    /**
+     * Получатели сегмента с chat_id > afterChatId по возрастанию (снимок на момент вызова).
+     */
+    public RecipientCursor recipients(Segment segment, long afterChatId) {
+        long[] ids;
+        synchronized (this) {
+            BitSet bits = resolve(segment);
+            ids = new long[bits.cardinality()];
+            int k = 0;
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                if (chatIds[i] > afterChatId) ids[k++] = chatIds[i];
+            }
+            ids = Arrays.copyOf(ids, k);
+        }
+        // номера выдаются в порядке появления, а движку нужен порядок chat_id
+        Arrays.sort(ids);
+        long[] sorted = ids;
+        return new RecipientCursor() {
+            private int pos;
+
+            @Override
+            public long[] nextPage() {
+                int to = Math.min(sorted.length, pos + PAGE_SIZE);
+                long[] page = Arrays.copyOfRange(sorted, pos, to);
+                pos = to;
+                return page;
+            }
+        };
+    }
+
+    private BitSet resolve(Segment segment) {
+        BitSet bits = (BitSet) all.clone();
+        for (Segment.Condition c : segment.conditions()) {
+            switch (c.kind()) {
+                case YEAR_ACTIVE -> bits.and(yearActive);
+                case NO_YEAR -> bits.andNot(yearActive);
+                case MONTH_ACTIVE -> bits.and(monthActive);
+                case MONTH_UNPAID -> {
+                    bits.and(yearActive);
+                    bits.andNot(monthActive);
+                }
+                case EXPIRING -> {
+                    int from = (int) LocalDate.now(zone).toEpochDay();
+                    // N ограничен в Segment.parse, так что from + N не переполняется
+                    int to = from + Integer.parseInt(c.arg());
+                    BitSet expiring = new BitSet();
+                    for (DayBucket b : byYearEnd.subMap(from, true, to, true).values()) {
+                        for (int i = 0; i < b.size; i++) expiring.set(b.items[i]);
+                    }
+                    bits.and(yearActive);
+                    bits.and(expiring);
+                }
+                case TAG -> {
+                    BitSet tagged = tags.get(c.arg());
+                    if (tagged == null) bits.clear();
+                    else bits.and(tagged);
+                }
+            }
+        }
+        return bits;
+    }
+
+    private int add(long chatId, String tag) {
+        int n = size++;
+        if (n == chatIds.length) {
+            chatIds = Arrays.copyOf(chatIds, n * 2);
+            yearEnd = Arrays.copyOf(yearEnd, n * 2);
+        }
+        chatIds[n] = chatId;
+        yearEnd[n] = NO_DAY;
+        numbers.put(chatId, n);
+        all.set(n);
+        tagBits(tag).set(n);
+        return n;
+    }
+
+    private void retag(int n, String tag) {
+        for (BitSet tagged : tags.values()) tagged.clear(n);
+        tagBits(tag).set(n);
+    }
+
+    private BitSet tagBits(String tag) {
+        return tags.computeIfAbsent(tag == null || tag.isBlank() ? DEFAULT_TAG : tag, t -> new BitSet());
+    }
+
+    private void apply(int n, SubscriptionState s) {
+        yearActive.set(n, s.yearActive());
+        monthActive.set(n, s.monthActive());
+        int day = s.yearEnd() == null ? NO_DAY : (int) s.yearEnd().toEpochDay();
+        int old = yearEnd[n];
+        if (day == old) return;
+        if (old != NO_DAY) {
+            DayBucket b = byYearEnd.get(old);
+            if (b.remove(n) == 0) byYearEnd.remove(old);
+        }
+        if (day != NO_DAY) byYearEnd.computeIfAbsent(day, d -> new DayBucket()).add(n);
+        yearEnd[n] = day;
+    }
+
+    private static final class DayBucket {
+        int[] items = new int[4];
+        int size;
+
+        void add(int n) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = n;
+        }
+
+        /** @return сколько осталось */
+        int remove(int n) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == n) {
+                    items[i] = items[--size];
+                    break;
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * chat_id -> плотный номер: открытая адресация без упаковки long в объекты.
+     */
+    private static final class ChatIdMap {
+        private long[] keys = new long[2048];
+        private int[] values = new int[2048];   // номер + 1, 0 — пусто
+        private int count;
+
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (values[i] == 0) return -1;
+                if (keys[i] == key) return values[i] - 1;
+            }
+        }
+
+        void put(long key, int value) {
+            if ((count + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (values[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            if (values[i] == 0) count++;
+            keys[i] = key;
+            values[i] = value + 1;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != 0) put(oldKeys[i], oldValues[i] - 1);
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.bot.service;
+
+import com.example.bot.db.RecipientCursor;
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Параллельная рассылка на виртуальных потоках с общим {@link SendThrottle}.
+ * Ответ 429 ставит на паузу всю рассылку на retry_after и повторяет отправку.
+ * Завершённые доставки отдаются {@link Listener} пачками для сохранения прогресса.
+ */
+public class BroadcastEngine {
+    private static final Logger log = LoggerFactory.getLogger(BroadcastEngine.class);
+
+    private static final MetricFamily<Counter> DELIVERIES =
+            Metrics.counter("broadcast_messages_total", "Broadcast deliveries by result", "result");
+    private static final Counter SENT = DELIVERIES.get("sent");
+    private static final Counter FAILED = DELIVERIES.get("failed");
+    private static final Counter FLOOD_PAUSES =
+            Metrics.counter("broadcast_flood_pauses_total", "Broadcast pauses after 429 Too Many Requests");
+    private static final Histogram DELIVERY_LATENCY =
+            Metrics.histogram("broadcast_delivery_seconds", "One broadcast delivery including throttling and retries");
+
+    private static final int MAX_IN_FLIGHT = 32;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int CHECKPOINT_BATCH = 200;
+    private static final long FLUSH_INTERVAL_MS = 2000;
+
+    /**
+     * Одна отправка конкретному получателю.
+     */
+    public interface Delivery {
+        void sendTo(long chatId) throws TelegramApiException;
+
+        /** Сколько сообщений засчитывается в лимиты (альбом = по сообщению на медиа). */
+        default int cost() { return 1; }
+    }
+
+    /**
+     * Получает пачки завершённых доставок. watermark — все получатели с chat_id <= watermark обработаны.
+     */
+    public interface Listener {
+        void onBatch(long[] chatIds, boolean[] ok, int n, long watermark);
+    }
+
+    public record Result(int sent, int failed, Duration elapsed, boolean completed) {}
+
+    private record Outcome(long chatId, boolean ok) {}
+
+    private final SendThrottle throttle;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<CompletableFuture<Result>> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean stopping;
+
+    public BroadcastEngine(SendThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param recipients курсор получателей по возрастанию chat_id (нужно для watermark); закрывается движком
+     */
+    public CompletableFuture<Result> start(RecipientCursor recipients, Delivery delivery, Listener listener) {
+        CompletableFuture<Result> run = CompletableFuture.supplyAsync(() -> run(recipients, delivery, listener), executor);
+        running.add(run);
+        run.whenComplete((r, e) -> running.remove(run));
+        return run;
+    }
+
+    /**
+     * Остановка процесса: новые отправки не начинаются, начатые дожидаются ответа,
+     * прогресс сохраняется через {@link Listener}, и рассылка продолжится после перезапуска.
+     */
+    public void stop(Duration timeout) {
+        stopping = true;
+        try {
+            CompletableFuture.allOf(running.toArray(CompletableFuture[]::new))
+                    .get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Broadcasts did not stop in {} ms, unconfirmed recipients will be retried", timeout.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // ошибка рассылки уже обработана её владельцем
+        }
+    }
+
+    private Result run(RecipientCursor recipients, Delivery delivery, Listener listener) {
+        long started = System.nanoTime();
+        Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+        ConcurrentLinkedQueue<Outcome> done = new ConcurrentLinkedQueue<>();
+        AtomicInteger sent = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long lastDispatched = Long.MIN_VALUE;
+        int sinceFlush = 0;
+        long lastFlush = System.nanoTime();
+        boolean completed = false;
+        boolean stopped = false;
+
+        try (recipients) {
+            dispatch:
+            for (long[] page = recipients.nextPage(); page.length > 0; page = recipients.nextPage()) {
+                for (long chatId : page) {
+                    if (stopping) {
+                        stopped = true;
+                        break dispatch;
+                    }
+                    while (!inFlight.tryAcquire(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                        flush(pending, done, lastDispatched, listener);
+                        lastFlush = System.nanoTime();
+                        sinceFlush = 0;
+                    }
+                    pending.add(chatId);
+                    lastDispatched = chatId;
+                    executor.execute(() -> {
+                        boolean ok = false;
+                        try {
+                            ok = deliver(chatId, delivery);
+                        } finally {
+                            (ok ? sent : failed).incrementAndGet();
+                            // порядок важен: сначала результат, потом снятие из pending (см. flush)
+                            done.add(new Outcome(chatId, ok));
+                            pending.remove(chatId);
+                            inFlight.release();
+                        }
+                    });
+                    if (++sinceFlush >= CHECKPOINT_BATCH
+                            || System.nanoTime() - lastFlush > TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS)) {
+                        flush(pending, done, lastDispatched, listener);
+                        lastFlush = System.nanoTime();
+                        sinceFlush = 0;
+                    }
+                }
+            }
+            // дождаться хвоста
+            inFlight.acquire(MAX_IN_FLIGHT);
+            completed = !stopped;
+            if (stopped) log.info("Broadcast stopped for shutdown, progress is checkpointed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Broadcast interrupted, progress is checkpointed");
+        }
+        flush(pending, done, lastDispatched, listener);
+
+        Result result = new Result(sent.get(), failed.get(), Duration.ofNanos(System.nanoTime() - started), completed);
+        log.info("Broadcast finished: sent={}, failed={}, took={}s, completed={}",
+                result.sent(), result.failed(), result.elapsed().toSeconds(), completed);
+        return result;
+    }
+
+    private void flush(ConcurrentSkipListSet<Long> pending, ConcurrentLinkedQueue<Outcome> done,
+                       long lastDispatched, Listener listener) {
+        // watermark считаем ДО выгрузки done: всё, что уже не в pending, гарантированно лежит в done
+        long watermark = lastDispatched;
+        try {
+            watermark = pending.first() - 1;
+        } catch (NoSuchElementException ignored) {}
+        if (done.isEmpty()) return;
+
+        long[] ids = new long[CHECKPOINT_BATCH];
+        boolean[] ok = new boolean[CHECKPOINT_BATCH];
+        int n = 0;
+        Outcome o;
+        while ((o = done.poll()) != null) {
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, n * 2);
+                ok = Arrays.copyOf(ok, n * 2);
+            }
+            ids[n] = o.chatId();
+            ok[n] = o.ok();
+            n++;
+        }
+        listener.onBatch(ids, ok, n, watermark);
+    }
+
+    private boolean deliver(long chatId, Delivery delivery) {
+        long started = System.nanoTime();
+        boolean ok = attemptDelivery(chatId, delivery);
+        DELIVERY_LATENCY.recordSince(started);
+        (ok ? SENT : FAILED).inc();
+        return ok;
+    }
+
+    private boolean attemptDelivery(long chatId, Delivery delivery) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                throttle.acquire(chatId, delivery.cost());
+                delivery.sendTo(chatId);
+                return true;
+            } catch (TelegramApiRequestException e) {
+                Integer retryAfter = retryAfter(e);
+                if (retryAfter == null) {
+                    log.warn("Broadcast to {} failed: {}", chatId, e.getMessage());
+                    return false;
+                }
+                log.warn("Flood limit hit, pausing broadcast for {}s", retryAfter);
+                FLOOD_PAUSES.inc();
+                throttle.pause(retryAfter);
+            } catch (TelegramApiException e) {
+                log.warn("Broadcast to {} failed: {}", chatId, e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        log.warn("Broadcast to {} failed: retries exhausted", chatId);
+        return false;
+    }
+
+    static Integer retryAfter(TelegramApiRequestException e) {
+        if (e.getErrorCode() == null || e.getErrorCode() != 429) return null;
+        ResponseParameters p = e.getParameters();
+        return (p != null && p.getRetryAfter() != null) ? p.getRetryAfter() : 1;
+    }
+}
@@ -1,94 +1,446 @@
 package com.example.bot.service;
 
+import com.example.bot.Env;
+import com.example.bot.db.BroadcastJob;
 import com.example.bot.db.Database;
+import com.example.bot.db.RecipientCursor;
 import com.example.bot.TelegramBot;
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Metrics;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.CopyMessage;
+import org.telegram.telegrambots.meta.api.methods.CopyMessages;
+import org.telegram.telegrambots.meta.api.methods.PartialBotApiMethod;
 import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.send.SendVideo;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.media.*;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 
+import java.io.Serializable;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class BroadcastService {
     private static final Logger log = LoggerFactory.getLogger(BroadcastService.class);
 
     public static class Session {
         public final long adminId;
+        public final Segment segment;
         public final List<InputMedia> media = new ArrayList<>();
         public String caption = null;
-        public Session(long adminId) { this.adminId = adminId; }
+        public Session(long adminId, Segment segment) { this.adminId = adminId; this.segment = segment; }
     }
 
+    private static final Counter BYTES_SAVED = Metrics.counter("broadcast_bytes_saved_total",
+            "Estimated request bytes saved by copy-mode broadcasts");
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final long STATUS_EDIT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    // Прогресс рассылки; меняется только из потока-координатора движка
+    private static class Progress {
+        final long jobId;
+        final long adminId;
+        final int total;
+        final long startedNanos = System.nanoTime();
+        int sent;
+        int failed;
+        int processedThisRun;
+        int bytesSavedPerDelivery;
+        long bytesSaved;
+        Integer statusMessageId;
+        long lastEditNanos = startedNanos;
+
+        Progress(long jobId, long adminId, int total, int sent, int failed, Integer statusMessageId) {
+            this.jobId = jobId;
+            this.adminId = adminId;
+            this.total = total;
+            this.sent = sent;
+            this.failed = failed;
+            this.statusMessageId = statusMessageId;
+        }
+    }
+
+    /**
+     * Режим copy: сообщение, один раз отправленное в chatId, раздаётся по message_id.
+     */
+    private record Source(long chatId, List<Integer> messageIds) {}
+
+    private final Env env;
     private final Database db;
     private final TelegramBot bot;
+    private final BroadcastEngine engine;
+    private final AudienceIndex audience;
     private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
 
-    public BroadcastService(Database db, TelegramBot bot) {
+    public BroadcastService(Env env, Database db, TelegramBot bot, SendThrottle throttle) {
+        this.env = env;
         this.db = db;
         this.bot = bot;
+        this.engine = new BroadcastEngine(throttle);
+        this.audience = new AudienceIndex(db, env.zone());
+        audience.load();
+    }
+
+    /**
+     * Дать идущим рассылкам дописать прогресс перед остановкой процесса.
+     */
+    public void stop(Duration timeout) {
+        engine.stop(timeout);
     }
 
     public boolean isCollecting(long adminId) { return sessions.containsKey(adminId); }
-    public void startCollecting(long adminId) { sessions.put(adminId, new Session(adminId)); }
+    public void startCollecting(long adminId, Segment segment) { sessions.put(adminId, new Session(adminId, segment)); }
     public void addPhoto(long adminId, String fileId) { Session s = sessions.get(adminId); if (s != null) s.media.add(new InputMediaPhoto(fileId)); }
     public void addVideo(long adminId, String fileId) { Session s = sessions.get(adminId); if (s != null) s.media.add(new InputMediaVideo(fileId)); }
     public void addDocument(long adminId, String fileId) { Session s = sessions.get(adminId); if (s != null) s.media.add(new InputMediaDocument(fileId)); }
     public void setCaption(long adminId, String text) { Session s = sessions.get(adminId); if (s != null) s.caption = text; }
 
+    /**
+     * Размер сегмента; для всех — COUNT(*) по users, для остальных — по индексу аудитории.
+     */
+    public int countAudience(Segment segment) {
+        return segment.isAll() ? db.countUsers() : audience.count(segment);
+    }
+
+    private RecipientCursor recipients(Segment segment, long afterChatId) {
+        return segment.isAll() ? db.streamUserChatIds(afterChatId) : audience.recipients(segment, afterChatId);
+    }
+
+    /**
+     * Сохраняет рассылку как задание и запускает её в фоне; прогресс админ видит в одном сообщении.
+     * В режиме copy сначала отправляет сообщение в чат-источник; если это не вышло — рассылает как обычно.
+     */
     public void finalizeAndBroadcast(long adminId) {
         Session s = sessions.remove(adminId);
         if (s == null) return;
-        List<Long> recipients = db.getAllUserChatIds();
-        if (recipients.isEmpty()) return;
+        int total = countAudience(s.segment);
+        if (total == 0) {
+            notifyAdmin(adminId, "🕊 В сегменте «" + s.segment + "» нет получателей, рассылка не запущена.");
+            return;
+        }
+        List<InputMedia> media = withCaption(s.media, s.caption);
 
-        if (!s.media.isEmpty() && s.caption != null && !s.caption.isBlank()) {
-            s.media.get(0).setCaption(s.caption);
+        if (!env.broadcastCopy()) {
+            launch(adminId, s.caption, media, null, s.segment, total);
+            return;
         }
+        long sourceChat = env.broadcastSourceChatId() != 0 ? env.broadcastSourceChatId() : adminId;
+        sendOriginal(originalMethod(sourceChat, s.caption, media)).handle((ids, e) -> {
+            if (e != null) {
+                log.warn("Broadcast source post failed, sending per recipient: {}", TelegramBot.unwrap(e).getMessage());
+            }
+            launch(adminId, s.caption, media, e == null ? new Source(sourceChat, ids) : null, s.segment, total);
+            return null;
+        });
+    }
+
+    private void launch(long adminId, String caption, List<InputMedia> media, Source source,
+                        Segment segment, int total) {
+        long jobId = db.createBroadcastJob(adminId, caption, encodeMedia(media),
+                source == null ? null : source.chatId(),
+                source == null ? null : encodeIds(source.messageIds()),
+                segment.isAll() ? null : segment.toString(),
+                total);
+        Progress progress = new Progress(jobId, adminId, total, 0, 0, null);
+        // статус-сообщение нужно до старта: его id правим по ходу рассылки
+        sendStatus(progress).thenAccept(messageId -> {
+            if (messageId != null) {
+                progress.statusMessageId = messageId;
+                db.setBroadcastStatusMessage(jobId, messageId);
+            }
+            run(progress, recipients(segment, Long.MIN_VALUE), caption, media, source);
+        });
+    }
 
-        for (Long chatId : recipients) {
-            try {
-                if (s.media.isEmpty()) {
-                    bot.execute(SendMessage.builder().chatId(chatId.toString()).text(s.caption == null ? "" : s.caption).build());
-                } else if (s.media.size() == 1) {
-                    InputMedia first = s.media.get(0);
-                    if (first instanceof InputMediaPhoto p) {
-                        SendPhoto sp = new SendPhoto();
-                        sp.setChatId(chatId.toString());
-                        sp.setPhoto(new InputFile(p.getMedia()));
-                        sp.setCaption(p.getCaption());
-                        bot.execute(sp);
-                    } else if (first instanceof InputMediaVideo v) {
-                        SendVideo sv = new SendVideo();
-                        sv.setChatId(chatId.toString());
-                        sv.setVideo(new InputFile(v.getMedia()));
-                        sv.setCaption(v.getCaption());
-                        bot.execute(sv);
-                    } else if (first instanceof InputMediaDocument d) {
-                        SendDocument sd = new SendDocument();
-                        sd.setChatId(chatId.toString());
-                        sd.setDocument(new InputFile(d.getMedia()));
-                        sd.setCaption(d.getCaption());
-                        bot.execute(sd);
-                    } else {
-                        bot.execute(SendMessage.builder().chatId(chatId.toString()).text(s.caption == null ? "" : s.caption).build());
-                    }
-                } else {
-                    SendMediaGroup group = new SendMediaGroup();
-                    group.setChatId(chatId.toString());
-                    group.setMedias(s.media);
-                    bot.execute(group);
+    /**
+     * Продолжить рассылки, прерванные рестартом: с последнего обработанного chat_id.
+     */
+    public void resumePendingJobs() {
+        for (BroadcastJob job : db.findRunningBroadcastJobs()) {
+            // без отметки — с самого начала, включая отрицательные chat_id групп
+            long after = job.lastChatId() == null ? Long.MIN_VALUE : job.lastChatId();
+            Set<Long> delivered = db.findBroadcastDeliveredAfter(job.id(), after);
+            RecipientCursor cursor = recipients(Segment.parse(job.segment()), after);
+            RecipientCursor remaining = new RecipientCursor() {
+                @Override
+                public long[] nextPage() throws InterruptedException {
+                    long[] page = cursor.nextPage();
+                    if (delivered.isEmpty()) return page;
+                    // страница из одних уже доставленных не должна выглядеть как конец
+                    long[] left = Arrays.stream(page).filter(id -> !delivered.contains(id)).toArray();
+                    return (left.length == 0 && page.length > 0) ? nextPage() : left;
                 }
-                Thread.sleep(30);
-            } catch (Exception e) {
-                log.warn("Broadcast to {} failed: {}", chatId, e.getMessage());
+
+                @Override
+                public void close() { cursor.close(); }
+            };
+            Progress progress = new Progress(job.id(), job.adminId(),
+                    job.total(), job.sent(), job.failed(), job.statusMessageId());
+            Source source = job.sourceMessageIds() == null ? null
+                    : new Source(job.sourceChatId(), decodeIds(job.sourceMessageIds()));
+            log.info("Resuming broadcast #{} after chat_id {}", job.id(),
+                    job.lastChatId() == null ? "<start>" : job.lastChatId());
+            run(progress, remaining, job.caption(), withCaption(decodeMedia(job.media()), job.caption()), source);
+        }
+    }
+
+    private void run(Progress progress, RecipientCursor recipients, String caption, List<InputMedia> media,
+                     Source source) {
+        BroadcastEngine.Delivery delivery;
+        if (source == null) {
+            delivery = delivery(caption, media);
+        } else {
+            delivery = copyDelivery(source);
+            // оценка по JSON тела запроса одному получателю (для файлов — по file_id, как и уходит в Bot API)
+            int perSend = requestBytes(originalMethod(progress.adminId, caption, media));
+            int perCopy = requestBytes(copyMethod(progress.adminId, source));
+            progress.bytesSavedPerDelivery = Math.max(0, perSend - perCopy);
+            log.info("Broadcast #{} in copy mode: {} B per request instead of {} B",
+                    progress.jobId, perCopy, perSend);
+        }
+
+        BroadcastEngine.Listener listener = (ids, ok, n, watermark) -> {
+            db.checkpointBroadcast(progress.jobId, ids, ok, n, watermark);
+            int sent = 0;
+            for (int i = 0; i < n; i++) {
+                if (ok[i]) sent++;
+            }
+            progress.sent += sent;
+            progress.failed += n - sent;
+            progress.processedThisRun += n;
+            if (progress.bytesSavedPerDelivery > 0) {
+                long saved = (long) sent * progress.bytesSavedPerDelivery;
+                progress.bytesSaved += saved;
+                BYTES_SAVED.add(saved);
+            }
+            if (System.nanoTime() - progress.lastEditNanos > STATUS_EDIT_INTERVAL_NANOS) {
+                editStatus(progress, false);
+            }
+        };
+
+        engine.start(recipients, delivery, listener).whenComplete((r, e) -> {
+            if (e != null) {
+                log.error("Broadcast #{} failed", progress.jobId, e);
+                notifyAdmin(progress.adminId, "⚠️ Рассылка прервана из-за ошибки. Она продолжится после перезапуска.");
+                return;
+            }
+            if (r.completed()) {
+                db.finishBroadcastJob(progress.jobId);
+                editStatus(progress, true);
             }
+        });
+    }
+
+    private CompletableFuture<Integer> sendStatus(Progress p) {
+        return bot.sendAsync(SendMessage.builder()
+                        .chatId(Long.toString(p.adminId))
+                        .text(statusText(p, false))
+                        .build())
+                .thenApply(Message::getMessageId)
+                .exceptionally(e -> {
+                    log.warn("Broadcast status send failed: {}", TelegramBot.unwrap(e).getMessage());
+                    return null;
+                });
+    }
+
+    private void editStatus(Progress p, boolean finished) {
+        p.lastEditNanos = System.nanoTime();
+        if (p.statusMessageId == null) {
+            if (finished) notifyAdmin(p.adminId, statusText(p, true));
+            return;
         }
+        bot.sendAsync(EditMessageText.builder()
+                        .chatId(Long.toString(p.adminId))
+                        .messageId(p.statusMessageId)
+                        .text(statusText(p, finished))
+                        .build())
+                .exceptionally(e -> {
+                    log.debug("Broadcast status edit failed: {}", TelegramBot.unwrap(e).getMessage());
+                    return null;
+                });
+    }
+
+    private static String statusText(Progress p, boolean finished) {
+        double seconds = (System.nanoTime() - p.startedNanos) / 1e9;
+        double rate = seconds > 0 ? p.processedThisRun / seconds : 0;
+        int remaining = Math.max(0, p.total - p.sent - p.failed);
+        return (finished ? "✅ Рассылка #" + p.jobId + " завершена." : "📨 Рассылка #" + p.jobId + " идёт…") + "\n\n" +
+                "Отправлено: " + p.sent + "\n" +
+                "Ошибок: " + p.failed + "\n" +
+                "Осталось: " + remaining + "\n" +
+                String.format(Locale.ROOT, "Скорость: %.1f сообщ./с", rate) +
+                (p.bytesSavedPerDelivery > 0
+                        ? String.format(Locale.ROOT, "\nКопирование: −%d Б на получателя, всего −%.1f КБ",
+                                p.bytesSavedPerDelivery, p.bytesSaved / 1024.0)
+                        : "");
+    }
+
+    private static List<InputMedia> withCaption(List<InputMedia> media, String caption) {
+        if (!media.isEmpty() && caption != null && !caption.isBlank()) {
+            media.get(0).setCaption(caption);
+        }
+        return media;
+    }
+
+    static String encodeMedia(List<InputMedia> media) {
+        StringBuilder sb = new StringBuilder();
+        for (InputMedia m : media) {
+            String type = m instanceof InputMediaPhoto ? "PHOTO"
+                    : m instanceof InputMediaVideo ? "VIDEO"
+                    : m instanceof InputMediaDocument ? "DOCUMENT" : null;
+            if (type == null) continue;
+            sb.append(type).append(' ').append(m.getMedia()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static String encodeIds(List<Integer> ids) {
+        StringJoiner sj = new StringJoiner(",");
+        for (Integer id : ids) sj.add(id.toString());
+        return sj.toString();
+    }
+
+    static List<Integer> decodeIds(String encoded) {
+        List<Integer> ids = new ArrayList<>();
+        for (String part : encoded.split(",")) {
+            if (!part.isBlank()) ids.add(Integer.parseInt(part.trim()));
+        }
+        return ids;
+    }
+
+    static List<InputMedia> decodeMedia(String encoded) {
+        List<InputMedia> media = new ArrayList<>();
+        if (encoded == null) return media;
+        for (String line : encoded.split("\n")) {
+            int sp = line.indexOf(' ');
+            if (sp < 0) continue;
+            String fileId = line.substring(sp + 1);
+            switch (line.substring(0, sp)) {
+                case "PHOTO" -> media.add(new InputMediaPhoto(fileId));
+                case "VIDEO" -> media.add(new InputMediaVideo(fileId));
+                case "DOCUMENT" -> media.add(new InputMediaDocument(fileId));
+                default -> log.warn("Unknown broadcast media type: {}", line);
+            }
+        }
+        return media;
+    }
+
+    /**
+     * Сообщение рассылки целиком для одного чата: текст, одно медиа или альбом.
+     */
+    private static PartialBotApiMethod<?> originalMethod(long chatId, String caption, List<InputMedia> media) {
+        String chat = Long.toString(chatId);
+        String text = caption == null ? "" : caption;
+        if (media.size() == 1) {
+            InputMedia first = media.get(0);
+            if (first instanceof InputMediaPhoto p) {
+                SendPhoto sp = new SendPhoto();
+                sp.setChatId(chat);
+                sp.setPhoto(new InputFile(p.getMedia()));
+                sp.setCaption(p.getCaption());
+                return sp;
+            } else if (first instanceof InputMediaVideo v) {
+                SendVideo sv = new SendVideo();
+                sv.setChatId(chat);
+                sv.setVideo(new InputFile(v.getMedia()));
+                sv.setCaption(v.getCaption());
+                return sv;
+            } else if (first instanceof InputMediaDocument d) {
+                SendDocument sd = new SendDocument();
+                sd.setChatId(chat);
+                sd.setDocument(new InputFile(d.getMedia()));
+                sd.setCaption(d.getCaption());
+                return sd;
+            }
+        } else if (media.size() > 1) {
+            SendMediaGroup group = new SendMediaGroup();
+            group.setChatId(chat);
+            group.setMedias(List.copyOf(media));
+            return group;
+        }
+        return SendMessage.builder().chatId(chat).text(text).build();
+    }
+
+    /**
+     * @return message_id отправленных сообщений (у альбома — по одному на медиа)
+     */
+    private CompletableFuture<List<Integer>> sendOriginal(PartialBotApiMethod<?> method) {
+        return switch (method) {
+            case SendPhoto p -> bot.sendAsync(p).thenApply(m -> List.of(m.getMessageId()));
+            case SendVideo v -> bot.sendAsync(v).thenApply(m -> List.of(m.getMessageId()));
+            case SendDocument d -> bot.sendAsync(d).thenApply(m -> List.of(m.getMessageId()));
+            case SendMediaGroup g -> bot.sendAsync(g).thenApply(ms -> ms.stream().map(Message::getMessageId).toList());
+            case SendMessage t -> bot.sendAsync(t).thenApply(m -> List.of(m.getMessageId()));
+            default -> throw new IllegalArgumentException("Unsupported broadcast method " + method.getMethod());
+        };
+    }
+
+    // Доставка ждёт future на виртуальном потоке движка: await возвращает исходное исключение для разбора 429
+    private BroadcastEngine.Delivery delivery(String caption, List<InputMedia> media) {
+        int cost = Math.max(1, media.size());
+        return new BroadcastEngine.Delivery() {
+            @Override
+            public void sendTo(long chatId) throws TelegramApiException {
+                TelegramBot.await(sendOriginal(originalMethod(chatId, caption, media)));
+            }
+
+            @Override
+            public int cost() { return cost; }
+        };
+    }
+
+    private static BotApiMethod<? extends Serializable> copyMethod(long chatId, Source source) {
+        if (source.messageIds().size() == 1) {
+            return CopyMessage.builder()
+                    .chatId(Long.toString(chatId))
+                    .fromChatId(Long.toString(source.chatId()))
+                    .messageId(source.messageIds().get(0))
+                    .build();
+        }
+        // альбом копируется одним запросом и остаётся альбомом
+        return CopyMessages.builder()
+                .chatId(Long.toString(chatId))
+                .fromChatId(Long.toString(source.chatId()))
+                .messageIds(source.messageIds())
+                .build();
+    }
+
+    private BroadcastEngine.Delivery copyDelivery(Source source) {
+        int cost = source.messageIds().size();
+        return new BroadcastEngine.Delivery() {
+            @Override
+            public void sendTo(long chatId) throws TelegramApiException {
+                TelegramBot.await(bot.sendAsync(copyMethod(chatId, source)));
+            }
+
+            @Override
+            public int cost() { return cost; }
+        };
+    }
+
+    private static int requestBytes(Object method) {
+        try {
+            return JSON.writeValueAsBytes(method).length;
+        } catch (JsonProcessingException e) {
+            return 0;
+        }
+    }
+
+    private void notifyAdmin(long adminId, String text) {
+        bot.send(SendMessage.builder().chatId(Long.toString(adminId)).text(text).build());
     }
 }
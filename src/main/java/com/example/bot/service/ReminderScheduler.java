@@ -0,0 +1,185 @@
+package com.example.bot.service;
+
+import com.example.bot.db.Database;
+import com.example.bot.db.SubscriptionListener;
+import com.example.bot.db.SubscriptionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Держит в {@link TimingWheel} ближайшие напоминания и истечения подписок
+ * и отдаёт их обработчику ровно в момент срабатывания (локальное время в зоне бота).
+ * Колесо заполняется диапазонными запросами на HORIZON_DAYS вперёд, каждые сутки
+ * догружается новый день, а изменения подписок приходят через {@link SubscriptionListener}.
+ */
+public class ReminderScheduler implements SubscriptionListener {
+    private static final Logger log = LoggerFactory.getLogger(ReminderScheduler.class);
+
+    static final String MONTH_MINUS_3 = "MONTH_MINUS_3";
+    static final String MONTH_TODAY   = "MONTH_TODAY";
+    static final String YEAR_MINUS_3  = "YEAR_MINUS_3";
+    static final String YEAR_TODAY    = "YEAR_TODAY";
+
+    private static final int DAYS_BEFORE = 3;
+    private static final int HORIZON_DAYS = 7;
+
+    /**
+     * Событие: напоминание типа type для подписки, заканчивающейся endDate; срабатывает в fireDate.
+     */
+    public record ReminderEvent(long chatId, String type, LocalDate endDate, LocalDate fireDate) {}
+
+    private final Database db;
+    private final ZoneId zone;
+    private final LocalTime fireAt;
+    private final Consumer<List<ReminderEvent>> handler;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reminder-wheel");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private TimingWheel<ReminderEvent> wheel;
+    private final Map<Long, List<TimingWheel.Timeout<ReminderEvent>>> byChat = new HashMap<>();
+    private LocalDate horizonEnd;   // события с fireDate <= horizonEnd уже в колесе
+
+    public ReminderScheduler(Database db, ZoneId zone, LocalTime fireAt, Consumer<List<ReminderEvent>> handler) {
+        this.db = db;
+        this.zone = zone;
+        this.fireAt = fireAt;
+        this.handler = handler;
+    }
+
+    public void start() {
+        LocalDate today = LocalDate.now(zone);
+        lock.lock();
+        try {
+            wheel = new TimingWheel<>(nowSeconds());
+            horizonEnd = today.minusDays(1);
+            seed(today, today.plusDays(HORIZON_DAYS));
+        } finally {
+            lock.unlock();
+        }
+        db.addSubscriptionListener(this);
+        ticker.scheduleAtFixedRate(this::tickSafe, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Прервать текущий прогон и дождаться его завершения, но не дольше timeout.
+     */
+    public void stop(Duration timeout) {
+        ticker.shutdownNow();
+        try {
+            if (!ticker.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Reminder run did not stop in {} ms", timeout.toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tickSafe() {
+        try {
+            tick();
+        } catch (Exception e) {
+            log.error("Reminder tick failed", e);
+        }
+    }
+
+    private void tick() {
+        List<ReminderEvent> expired;
+        lock.lock();
+        try {
+            LocalDate horizon = LocalDate.now(zone).plusDays(HORIZON_DAYS);
+            if (horizon.isAfter(horizonEnd)) {
+                seed(horizonEnd.plusDays(1), horizon);
+            }
+            expired = wheel.advance(nowSeconds());
+            for (ReminderEvent e : expired) {
+                List<TimingWheel.Timeout<ReminderEvent>> list = byChat.get(e.chatId());
+                if (list != null) {
+                    list.removeIf(t -> !t.isPending());
+                    if (list.isEmpty()) byChat.remove(e.chatId());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!expired.isEmpty()) handler.accept(expired);
+    }
+
+    /**
+     * Загрузить события с fireDate в [from, to] индексными диапазонными запросами.
+     */
+    private void seed(LocalDate from, LocalDate to) {
+        long started = System.nanoTime();
+        int before = wheel.size();
+        LocalDate lastEnd = to.plusDays(DAYS_BEFORE);
+        for (Database.DueDate d : db.findMonthSubsEndingBetween(from, lastEnd)) {
+            addIfInRange(d.chatId(), MONTH_MINUS_3, d.date(), d.date().minusDays(DAYS_BEFORE), from, to);
+            addIfInRange(d.chatId(), MONTH_TODAY, d.date(), d.date(), from, to);
+        }
+        for (Database.DueDate d : db.findYearSubsEndingBetween(from, lastEnd)) {
+            addIfInRange(d.chatId(), YEAR_MINUS_3, d.date(), d.date().minusDays(DAYS_BEFORE), from, to);
+            addIfInRange(d.chatId(), YEAR_TODAY, d.date(), d.date(), from, to);
+        }
+        horizonEnd = to;
+        log.info("Reminder wheel seeded {}..{}: +{} events in {} ms",
+                from, to, wheel.size() - before, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    @Override
+    public void onSubscriptionChanged(long chatId, SubscriptionState state) {
+        lock.lock();
+        try {
+            if (wheel == null) return;
+            List<TimingWheel.Timeout<ReminderEvent>> old = byChat.remove(chatId);
+            if (old != null) {
+                for (TimingWheel.Timeout<ReminderEvent> t : old) wheel.cancel(t);
+            }
+            LocalDate from = LocalDate.now(zone);
+            if (state.yearActive() && state.yearEnd() != null) {
+                LocalDate end = state.yearEnd();
+                addIfInRange(chatId, YEAR_MINUS_3, end, end.minusDays(DAYS_BEFORE), from, horizonEnd);
+                addIfInRange(chatId, YEAR_TODAY, end, end, from, horizonEnd);
+                if (state.monthActive() && state.monthEnd() != null) {
+                    LocalDate monthEnd = state.monthEnd();
+                    addIfInRange(chatId, MONTH_MINUS_3, monthEnd, monthEnd.minusDays(DAYS_BEFORE), from, horizonEnd);
+                    addIfInRange(chatId, MONTH_TODAY, monthEnd, monthEnd, from, horizonEnd);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addIfInRange(long chatId, String type, LocalDate end, LocalDate fireDate,
+                              LocalDate from, LocalDate to) {
+        if (fireDate.isBefore(from) || fireDate.isAfter(to)) return;
+        List<TimingWheel.Timeout<ReminderEvent>> list = byChat.computeIfAbsent(chatId, k -> new ArrayList<>(2));
+        for (TimingWheel.Timeout<ReminderEvent> t : list) {
+            ReminderEvent e = t.payload;
+            if (t.isPending() && e.type().equals(type) && e.endDate().equals(end)) return;
+        }
+        long deadline = fireDate.atTime(fireAt).atZone(zone).toEpochSecond();
+        list.add(wheel.schedule(deadline, new ReminderEvent(chatId, type, end, fireDate)));
+    }
+
+    private static long nowSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.bot.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * Сегмент получателей рассылки: пересечение условий.
+ * Текстовая форма (аргументы /send и колонка broadcast_jobs.segment), условия через пробел:
+ * year, no_year, month, month_unpaid, expiring:N, tag:X. Пустая строка или all — все пользователи.
+ */
+public record Segment(List<Condition> conditions) {
+
+    public static final Segment ALL = new Segment(List.of());
+
+    /** Больше не нужно: годовая подписка не продлевается дальше чем на несколько лет вперёд. */
+    static final int MAX_EXPIRING_DAYS = 3660;
+
+    public enum Kind {
+        YEAR_ACTIVE("year"),
+        NO_YEAR("no_year"),
+        MONTH_ACTIVE("month"),
+        MONTH_UNPAID("month_unpaid"),   // год активен, месяц не оплачен
+        EXPIRING("expiring"),           // год активен и кончается в ближайшие N дней
+        TAG("tag");
+
+        final String token;
+
+        Kind(String token) {
+            this.token = token;
+        }
+    }
+
+    public record Condition(Kind kind, String arg) {
+        @Override
+        public String toString() {
+            return arg == null ? kind.token : kind.token + ":" + arg;
+        }
+    }
+
+    public Segment {
+        conditions = List.copyOf(conditions);
+    }
+
+    public boolean isAll() {
+        return conditions.isEmpty();
+    }
+
+    /**
+     * @throws IllegalArgumentException текст ошибки можно показать админу
+     */
+    public static Segment parse(String text) {
+        if (text == null || text.isBlank()) return ALL;
+        List<Condition> conditions = new ArrayList<>();
+        for (String token : text.trim().split("\\s+")) {
+            if (token.equalsIgnoreCase("all")) continue;
+            int colon = token.indexOf(':');
+            String name = (colon < 0 ? token : token.substring(0, colon)).toLowerCase();
+            String arg = colon < 0 ? null : token.substring(colon + 1);
+            Kind kind = null;
+            for (Kind k : Kind.values()) {
+                if (k.token.equals(name)) kind = k;
+            }
+            if (kind == null) throw new IllegalArgumentException("Неизвестное условие: " + token);
+            switch (kind) {
+                case EXPIRING -> {
+                    try {
+                        int days = arg == null ? -1 : Integer.parseInt(arg);
+                        if (days < 0 || days > MAX_EXPIRING_DAYS) throw new NumberFormatException();
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(
+                                "Нужно число дней от 0 до " + MAX_EXPIRING_DAYS + ": expiring:7");
+                    }
+                }
+                case TAG -> {
+                    if (arg == null || arg.isBlank()) throw new IllegalArgumentException("Нужен тег: tag:basic");
+                }
+                default -> {
+                    if (arg != null) throw new IllegalArgumentException("У условия " + name + " нет аргумента");
+                }
+            }
+            conditions.add(new Condition(kind, arg));
+        }
+        return new Segment(conditions);
+    }
+
+    @Override
+    public String toString() {
+        if (conditions.isEmpty()) return "all";
+        StringJoiner sj = new StringJoiner(" ");
+        for (Condition c : conditions) sj.add(c.toString());
+        return sj.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.bot.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограничитель исходящих сообщений под лимиты Telegram:
+ * общий token bucket на бота (~30 msg/s) и минимальный интервал между сообщениями в один чат.
+ * Реализован через резервирование слотов (GCRA), поэтому ожидающие потоки не толкаются за токены.
+ * Один на процесс: его делят рассылки, напоминания и повторы из {@link com.example.bot.Outbox}.
+ * Рассчитан на виртуальные потоки: блокировки — ReentrantLock, без synchronized.
+ */
+public final class SendThrottle {
+    /** Сколько сообщений можно отправить подряд после простоя. */
+    public static final int DEFAULT_BURST = 10;
+
+    private static final long PER_CHAT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int SWEEP_EVERY = 4096;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long tat;            // theoretical arrival time следующего сообщения
+    private volatile long pausedUntil;
+
+    private final ConcurrentHashMap<Long, Long> chatNextAllowed = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+
+    public SendThrottle(int messagesPerSecond, int burst) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, messagesPerSecond);
+        this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+        this.tat = System.nanoTime();
+    }
+
+    /**
+     * Дождаться права отправить {@code cost} сообщений в чат {@code chatId}.
+     */
+    public void acquire(long chatId, int cost) throws InterruptedException {
+        acquireChat(chatId, cost);
+        while (true) {
+            long wait;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                long t = Math.max(tat, now);
+                wait = (t - burstNanos) - now;
+                tat = t + intervalNanos * cost;
+            } finally {
+                lock.unlock();
+            }
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            // Если за время ожидания пришёл 429 — ждём паузу и резервируем слот заново
+            long pause = pausedUntil - System.nanoTime();
+            if (pause <= 0) return;
+            TimeUnit.NANOSECONDS.sleep(pause);
+        }
+    }
+
+    /**
+     * Глобальная пауза после ответа 429 (retry_after).
+     */
+    public void pause(long seconds) {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        lock.lock();
+        try {
+            if (until - pausedUntil > 0) pausedUntil = until;
+            // после паузы не выстреливаем всем накопленным burst разом
+            tat = Math.max(tat, until + burstNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquireChat(long chatId, int cost) throws InterruptedException {
+        long[] wait = new long[1];
+        chatNextAllowed.compute(chatId, (id, next) -> {
+            long now = System.nanoTime();
+            long start = (next == null || next - now < 0) ? now : next;
+            wait[0] = start - now;
+            return start + PER_CHAT_INTERVAL_NANOS * cost;
+        });
+        if (calls.incrementAndGet() % SWEEP_EVERY == 0) sweep();
+        if (wait[0] > 0) TimeUnit.NANOSECONDS.sleep(wait[0]);
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        chatNextAllowed.values().removeIf(next -> next - now < 0);
+    }
+}
@@ -3,111 +3,196 @@ package com.example.bot.service;
 import com.example.bot.DateUtils;
 import com.example.bot.Env;
 import com.example.bot.Keyboards;
+import com.example.bot.Outbox;
+import com.example.bot.PreparedMessage;
 import com.example.bot.TelegramBot;
+import com.example.bot.Templates;
 import com.example.bot.db.Database;
+import com.example.bot.db.Database.PaymentKind;
+import com.example.bot.db.Database.PaymentResult;
+import com.example.bot.db.Database.PaymentStatus;
+import com.example.bot.db.Database.ReminderTransition;
+import com.example.bot.db.SubscriptionState;
+import com.example.bot.metrics.Counter;
+import com.example.bot.metrics.Histogram;
+import com.example.bot.metrics.MetricFamily;
+import com.example.bot.metrics.Metrics;
+import com.example.bot.service.ReminderScheduler.ReminderEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.payments.SuccessfulPayment;
 
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 public class SubscriptionService {
     private static final Logger log = LoggerFactory.getLogger(SubscriptionService.class);
 
-    private static final String R_MONTH_MINUS_3 = "MONTH_MINUS_3";
-    private static final String R_MONTH_TODAY  = "MONTH_TODAY";
-    private static final String R_YEAR_MINUS_3 = "YEAR_MINUS_3";
-    private static final String R_YEAR_TODAY   = "YEAR_TODAY";
+    private static final Histogram REMINDER_RUN =
+            Metrics.histogram("reminder_run_seconds", "Duration of one reminder batch run");
+    private static final MetricFamily<Counter> REMINDERS =
+            Metrics.counter("reminders_total", "Reminder notifications by outcome", "result");
+
+    private static final int REMINDER_BATCH = 500;
+
+    // Порядок обработки как раньше: сначала месячные, потом годовые
+    private static final List<String> REMINDER_ORDER = List.of(
+            ReminderScheduler.MONTH_MINUS_3, ReminderScheduler.MONTH_TODAY,
+            ReminderScheduler.YEAR_MINUS_3, ReminderScheduler.YEAR_TODAY);
 
     private final Env env;
     private final Database db;
     private final TelegramBot bot;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Outbox outbox;
+    private final SendThrottle throttle;
+    private final ReminderScheduler reminders;
 
-    public SubscriptionService(Env env, Database db, TelegramBot bot) {
+    public SubscriptionService(Env env, Database db, TelegramBot bot, Outbox outbox, SendThrottle throttle) {
         this.env = env;
         this.db = db;
         this.bot = bot;
+        this.outbox = outbox;
+        this.throttle = throttle;
+        this.reminders = new ReminderScheduler(db, env.zone(), env.reminderTime(), this::runRemindersSafe);
     }
 
     public void startSchedulers() {
-        // Раз в час ок, т.к. напоминания теперь идемпотентные.
-        scheduler.scheduleAtFixedRate(this::runRemindersSafe, 5, 60, TimeUnit.MINUTES);
+        // Напоминания срабатывают по событиям колеса таймеров, без часового опроса БД
+        reminders.start();
+    }
+
+    /**
+     * Остановить напоминания; захваченные, но не отправленные остаются в журнале {@link Outbox}.
+     */
+    public void stop(Duration timeout) {
+        reminders.stop(timeout);
     }
 
-    private void runRemindersSafe() {
+    private LocalDate today() {
+        return LocalDate.now(env.zone());
+    }
+
+    private void runRemindersSafe(List<ReminderEvent> events) {
         try {
-            runReminders();
+            runReminders(events);
         } catch (Exception e) {
             log.error("Reminder task failed", e);
         }
     }
 
-    private void runReminders() {
-        LocalDate today = LocalDate.now();
-
-        // 1) МЕСЯЧНАЯ ПОДПИСКА (внутри годовой)
-        // за 3 дня до конца месяца — строго один раз в сутки
-        List<Long> monthIn3days = db.findMonthSubsEndingInDays(3);
-        for (Long chatId : monthIn3days) {
-            if (db.markReminderOnce(chatId, R_MONTH_MINUS_3, today)) {
-                SendMessage m = SendMessage.builder()
-                        .chatId(chatId.toString())
-                        .text("⏰ Через 3 дня заканчивается оплаченный месяц вашей подписки.\n" +
-                                "Чтобы сохранить обслуживание за 390 ₽ в месяц, оплатите следующий месяц.")
-                        .replyMarkup(Keyboards.buyMonthButton())
-                        .build();
-                try { bot.execute(m); } catch (TelegramApiException ignored) {}
-            }
-        }
+    private void runReminders(List<ReminderEvent> events) {
+        long started = System.nanoTime();
+        ReminderStats stats = new ReminderStats();
 
-        // в день окончания месяца — строго один раз в сутки
-        List<Long> monthToday = db.findMonthSubsEndingToday();
-        for (Long chatId : monthToday) {
-            if (db.markReminderOnce(chatId, R_MONTH_TODAY, today)) {
-                db.setMonthly(chatId, false, today);
-                SendMessage m = SendMessage.builder()
-                        .chatId(chatId.toString())
-                        .text("⚠️ Срок вашей месячной оплаты истёк.\n" +
-                                "Оплатите 390 ₽, чтобы продолжить обслуживание в рамках годовой подписки.")
-                        .replyMarkup(Keyboards.buyMonthButton())
-                        .build();
-                try { bot.execute(m); } catch (TelegramApiException ignored) {}
+        for (String type : REMINDER_ORDER) {
+            // события одного тика почти всегда в один день, но группируем честно
+            Map<LocalDate, List<Long>> byDay = new TreeMap<>();
+            for (ReminderEvent e : events) {
+                if (e.type().equals(type) && stillDue(e)) {
+                    byDay.computeIfAbsent(e.fireDate(), d -> new ArrayList<>()).add(e.chatId());
+                }
+            }
+            for (Map.Entry<LocalDate, List<Long>> day : byDay.entrySet()) {
+                long[] due = day.getValue().stream().mapToLong(Long::longValue).toArray();
+                switch (type) {
+                    // за 3 дня до конца месяца — строго один раз в сутки
+                    case ReminderScheduler.MONTH_MINUS_3 -> processReminders(type, day.getKey(), due, ReminderTransition.NONE,
+                            Templates.MONTH_MINUS_3, stats);
+                    // в день окончания месяца — строго один раз в сутки
+                    case ReminderScheduler.MONTH_TODAY -> processReminders(type, day.getKey(), due, ReminderTransition.EXPIRE_MONTH,
+                            Templates.MONTH_TODAY, stats);
+                    // за 3 дня до конца года — строго один раз в сутки
+                    case ReminderScheduler.YEAR_MINUS_3 -> processReminders(type, day.getKey(), due, ReminderTransition.NONE,
+                            Templates.YEAR_MINUS_3, stats);
+                    // в день окончания годовой — строго один раз в сутки
+                    case ReminderScheduler.YEAR_TODAY -> processReminders(type, day.getKey(), due, ReminderTransition.EXPIRE_YEAR,
+                            Templates.YEAR_TODAY, stats);
+                    default -> log.warn("Unknown reminder type {}", type);
+                }
             }
         }
 
-        // 2) ГОДОВАЯ ПОДПИСКА
-        // за 3 дня до конца года — строго один раз в сутки
-        List<Long> yearIn3days = db.findYearSubsEndingInDays(3);
-        for (Long chatId : yearIn3days) {
-            if (db.markReminderOnce(chatId, R_YEAR_MINUS_3, today)) {
-                SendMessage m = SendMessage.builder()
-                        .chatId(chatId.toString())
-                        .text("⏰ Через 3 дня заканчивается ваша годовая подписка на вечные очки.\n" +
-                                "Продлите её, чтобы сохранить все преимущества.")
-                        .replyMarkup(Keyboards.buyYearButton())
-                        .build();
-                try { bot.execute(m); } catch (TelegramApiException ignored) {}
-            }
+        REMINDERS.get("already_claimed").add(stats.due - stats.claimed);
+        REMINDERS.get("deferred").add(stats.deferred);
+        // итог — когда отправки завершатся: Outbox повторяет 429/5xx, ждать их на потоке колеса незачем
+        CompletableFuture.allOf(stats.sends.toArray(CompletableFuture[]::new))
+                .exceptionally(e -> null)
+                .thenRun(() -> {
+                    int sent = 0;
+                    int failed = 0;
+                    for (CompletableFuture<Message> f : stats.sends) {
+                        if (f.isCompletedExceptionally()) failed++;
+                        else sent++;
+                    }
+                    REMINDER_RUN.recordSince(started);
+                    REMINDERS.get("sent").add(sent);
+                    REMINDERS.get("failed").add(failed);
+                    log.info("Reminders run: due={}, claimed={}, sent={}, failed={}, deferred={}, db={}ms, total={}ms",
+                            stats.due, stats.claimed, sent, failed, stats.deferred,
+                            TimeUnit.NANOSECONDS.toMillis(stats.dbNanos),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                });
+    }
+
+    /**
+     * Подписка могла измениться после постановки события — сверяемся со снимком из кэша.
+     */
+    private boolean stillDue(ReminderEvent e) {
+        SubscriptionState s = db.getSubscriptionState(e.chatId());
+        if (!s.yearActive()) return false;
+        if (e.type().startsWith("MONTH")) {
+            return s.monthActive() && e.endDate().equals(s.monthEnd());
         }
+        return e.endDate().equals(s.yearEnd());
+    }
+
+    private static class ReminderStats {
+        int due;
+        int claimed;
+        int deferred;
+        long dbNanos;
+        final List<CompletableFuture<Message>> sends = new ArrayList<>();
+    }
+
+    /**
+     * Пачками: захват + переход состояния одной транзакцией, затем отправка захваченным
+     * в темпе общего с рассылками {@link SendThrottle}.
+     */
+    private void processReminders(String type, LocalDate today, long[] due, ReminderTransition transition,
+                                  PreparedMessage message, ReminderStats stats) {
+        stats.due += due.length;
+        for (int from = 0; from < due.length; from += REMINDER_BATCH) {
+            // остановка: новых захватов не делаем, колесо поставит их снова после старта
+            if (Thread.currentThread().isInterrupted()) return;
+            long[] batch = Arrays.copyOfRange(due, from, Math.min(due.length, from + REMINDER_BATCH));
 
-        // в день окончания годовой — строго один раз в сутки
-        List<Long> yearToday = db.findYearSubsEndingToday();
-        for (Long chatId : yearToday) {
-            if (db.markReminderOnce(chatId, R_YEAR_TODAY, today)) {
-                db.cancelSubscriptionHard(chatId);
-                SendMessage m = SendMessage.builder()
-                        .chatId(chatId.toString())
-                        .text("⚠️ Ваша годовая подписка закончилась.\n" +
-                                "Чтобы продолжить пользоваться сервисом, оформите новый год за 3900 ₽.")
-                        .replyMarkup(Keyboards.buyYearButton())
-                        .build();
-                try { bot.execute(m); } catch (TelegramApiException ignored) {}
+            long t = System.nanoTime();
+            long[] claimed = db.claimReminders(type, today, batch, transition);
+            stats.dbNanos += System.nanoTime() - t;
+            stats.claimed += claimed.length;
+
+            for (int i = 0; i < claimed.length; i++) {
+                try {
+                    // тот же лимит, что у рассылок: большой день напоминаний не упирается в 429
+                    throttle.acquire(claimed[i], 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // захват уже в базе — оставшиеся только в журнал, уйдут после перезапуска
+                    for (int j = i; j < claimed.length; j++) outbox.defer(claimed[j], message);
+                    stats.deferred += claimed.length - i;
+                    return;
+                }
+                // захват уже записан в базе — сообщение сначала в журнал, чтобы не потерять при остановке
+                stats.sends.add(outbox.send(claimed[i], message));
             }
         }
     }
@@ -115,10 +200,11 @@ public class SubscriptionService {
     // --- Публичные методы ---
 
     public void showMySubscription(long chatId) {
-        boolean yearActive = db.isSubscriptionActive(chatId);
-        boolean monthActive = db.isMonthlyActive(chatId);
-        LocalDate yearEnd = db.getSubscriptionEnd(chatId);
-        LocalDate monthEnd = db.getMonthlyEnd(chatId);
+        SubscriptionState state = db.getSubscriptionState(chatId);
+        boolean yearActive = state.yearActive();
+        boolean monthActive = state.monthActive();
+        LocalDate yearEnd = state.yearEnd();
+        LocalDate monthEnd = state.monthEnd();
 
         StringBuilder sb = new StringBuilder();
         if (yearActive && yearEnd != null) {
@@ -141,74 +227,65 @@ public class SubscriptionService {
             sb.append("\nДля использования сервиса сначала оформите годовую подписку за 3900 ₽.");
         }
 
-        try {
-            bot.execute(SendMessage.builder()
-                    .chatId(Long.toString(chatId))
-                    .text(sb.toString())
-                    .replyMarkup(Keyboards.backToMenu())
-                    .build());
-        } catch (TelegramApiException e) {
-            log.warn("Send failed", e);
-        }
+        bot.send(SendMessage.builder()
+                .chatId(Long.toString(chatId))
+                .text(sb.toString())
+                .replyMarkup(Keyboards.backToMenu())
+                .build());
     }
 
     // Активация годовой: первый платёж 2 900 ₽
-    public void activateYearSubscription(long chatId) {
-        LocalDate yearEnd = LocalDate.now().plusYears(1);
-        LocalDate monthEnd = LocalDate.now().plusMonths(1);
-
-        db.setSubscription(chatId, true, yearEnd);
-
-        if (monthEnd.isAfter(yearEnd)) {
-            monthEnd = yearEnd;
+    public void activateYearSubscription(long chatId, SuccessfulPayment payment) {
+        PaymentResult r = applyPayment(chatId, payment, PaymentKind.YEAR);
+        if (r.status() == PaymentStatus.REJECTED) {
+            log.error("Year payment {} for unknown user {}", payment.getTelegramPaymentChargeId(), chatId);
+            return;
         }
-        db.setMonthly(chatId, true, monthEnd);
 
         send(chatId,
                 "✅ Подписка активирована на 1 год.\n" +
-                        "📅 Годовая активна до: " + DateUtils.formatRu(yearEnd) + "\n" +
-                        "📆 Месяц оплачен до: " + DateUtils.formatRu(monthEnd));
+                        "📅 Годовая активна до: " + DateUtils.formatRu(r.yearEnd()) + "\n" +
+                        "📆 Месяц оплачен до: " + DateUtils.formatRu(r.monthEnd()));
     }
 
     // Продление месяца: платёж 200 ₽
-    public void extendMonthly(long chatId) {
-        LocalDate now = LocalDate.now();
-        LocalDate yearEnd = db.getSubscriptionEnd(chatId);
-
-        if (yearEnd == null || yearEnd.isBefore(now)) {
+    public void extendMonthly(long chatId, SuccessfulPayment payment) {
+        PaymentResult r = applyPayment(chatId, payment, PaymentKind.MONTH);
+        if (r.status() == PaymentStatus.REJECTED) {
             send(chatId, "⚠️ Сначала нужно оформить годовую подписку за 3900 ₽.");
             return;
         }
 
-        LocalDate currentMonthEnd = db.getMonthlyEnd(chatId);
-        LocalDate base = (currentMonthEnd != null && !currentMonthEnd.isBefore(now))
-                ? currentMonthEnd
-                : now;
-
-        LocalDate newMonthEnd = base.plusMonths(1);
-        if (newMonthEnd.isAfter(yearEnd)) {
-            newMonthEnd = yearEnd;
-        }
-
-        db.setMonthly(chatId, true, newMonthEnd);
-
         send(chatId,
                 "✅ Месячная оплата обновлена.\n" +
-                        "📆 Месяц оплачен до: " + DateUtils.formatRu(newMonthEnd));
+                        "📆 Месяц оплачен до: " + DateUtils.formatRu(r.monthEnd()));
+    }
+
+    /**
+     * Повторно доставленный платёж не продлевает второй раз, но подтверждение отправляем снова
+     * с записанными сроками: первое могло не дойти, если процесс упал сразу после записи.
+     */
+    private PaymentResult applyPayment(long chatId, SuccessfulPayment payment, PaymentKind kind) {
+        PaymentResult r = db.applyPayment(payment.getTelegramPaymentChargeId(), payment.getProviderPaymentChargeId(),
+                chatId, kind, payment.getCurrency(), payment.getTotalAmount(), today());
+        if (r.duplicate()) {
+            log.info("Payment {} for {} already processed ({})", payment.getTelegramPaymentChargeId(), chatId, r.status());
+        }
+        return r;
     }
 
     public void cancelSubscription(long chatId) {
-        db.cancelSubscriptionHard(chatId);
+        db.cancelSubscriptionHard(chatId, today());
     }
 
+    // подтверждение оплаты идёт через журнал: платёж уже записан, сообщение не должно потеряться
     private void send(long chatId, String text) {
-        try {
-            bot.execute(SendMessage.builder()
-                    .chatId(Long.toString(chatId))
-                    .text(text)
-                    .build());
-        } catch (TelegramApiException e) {
-            log.warn("Send failed", e);
-        }
+        outbox.send(chatId, PreparedMessage.of(SendMessage.builder()
+                        .chatId(Long.toString(chatId))
+                        .text(text)
+                        .build()))
+                .whenComplete((r, e) -> {
+                    if (e != null) log.warn("Payment confirmation to {} failed: {}", chatId, TelegramBot.unwrap(e).getMessage());
+                });
     }
 }
\ No newline at end of file
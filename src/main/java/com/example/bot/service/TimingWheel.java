@@ -0,0 +1,165 @@
+package com.example.bot.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Иерархическое колесо таймеров с шагом в 1 секунду:
+ * уровни секунд (60), минут (60), часов (24) и суток (64). Всё дальше 64 суток лежит
+ * в отдельном списке и перекладывается в колесо на границе суток.
+ * Вставка и отмена — O(1), продвижение на тик — O(таймеров в слоте).
+ * Не потокобезопасно: владелец обязан сериализовать вызовы.
+ */
+final class TimingWheel<T> {
+    private static final int[] SIZES = {60, 60, 24, 64};
+    private static final long[] UNITS = {1, 60, 3600, 86400};
+
+    static final class Timeout<T> {
+        final long deadline;    // эпоха в секундах
+        final T payload;
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(long deadline, T payload) {
+            this.deadline = deadline;
+            this.payload = payload;
+        }
+
+        boolean isPending() {
+            return bucket != null;
+        }
+    }
+
+    private static final class Bucket<T> {
+        private Timeout<T> head;
+
+        void add(Timeout<T> t) {
+            t.bucket = this;
+            t.prev = null;
+            t.next = head;
+            if (head != null) head.prev = t;
+            head = t;
+        }
+
+        void remove(Timeout<T> t) {
+            if (t.prev != null) t.prev.next = t.next;
+            else head = t.next;
+            if (t.next != null) t.next.prev = t.prev;
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+        }
+
+        Timeout<T> drain() {
+            Timeout<T> h = head;
+            head = null;
+            return h;
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Bucket<T>[][] levels = new Bucket[SIZES.length][];
+    private final Bucket<T> far = new Bucket<>();
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long nowSeconds) {
+        for (int l = 0; l < SIZES.length; l++) {
+            levels[l] = newBuckets(SIZES[l]);
+        }
+        this.currentTick = nowSeconds;
+    }
+
+    private static <T> Bucket<T>[] newBuckets(int n) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Bucket<T>[] b = new Bucket[n];
+        for (int i = 0; i < n; i++) b[i] = new Bucket<>();
+        return b;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Запланировать payload на момент deadline (секунды эпохи). Прошедшие сроки сработают на ближайшем тике.
+     */
+    Timeout<T> schedule(long deadline, T payload) {
+        Timeout<T> t = new Timeout<>(deadline, payload);
+        place(t);
+        size++;
+        return t;
+    }
+
+    void cancel(Timeout<T> t) {
+        if (t.bucket == null) return;
+        t.bucket.remove(t);
+        size--;
+    }
+
+    /**
+     * Продвинуть колесо до nowSeconds и вернуть сработавшие payload.
+     */
+    List<T> advance(long nowSeconds, List<T> expired) {
+        while (currentTick < nowSeconds) {
+            currentTick++;
+            // сначала каскад сверху вниз, затем срабатывание нижнего уровня
+            if (currentTick % UNITS[3] == 0) {
+                cascade(far.drain());
+            }
+            for (int l = SIZES.length - 1; l >= 1; l--) {
+                if (currentTick % UNITS[l] == 0) {
+                    cascade(levels[l][slot(currentTick, l)].drain());
+                }
+            }
+            Timeout<T> t = levels[0][slot(currentTick, 0)].drain();
+            while (t != null) {
+                Timeout<T> next = t.next;
+                t.bucket = null;
+                t.prev = null;
+                t.next = null;
+                if (t.deadline <= currentTick) {
+                    size--;
+                    expired.add(t.payload);
+                } else {
+                    place(t);
+                }
+                t = next;
+            }
+        }
+        return expired;
+    }
+
+    List<T> advance(long nowSeconds) {
+        return advance(nowSeconds, new ArrayList<>());
+    }
+
+    private void cascade(Timeout<T> t) {
+        while (t != null) {
+            Timeout<T> next = t.next;
+            t.bucket = null;
+            t.prev = null;
+            t.next = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void place(Timeout<T> t) {
+        // просроченное кладём в следующий тик нижнего уровня
+        long deadline = Math.max(t.deadline, currentTick + 1);
+        long delta = deadline - currentTick;
+        for (int l = 0; l < SIZES.length; l++) {
+            if (delta < UNITS[l] * SIZES[l]) {
+                levels[l][slot(deadline, l)].add(t);
+                return;
+            }
+        }
+        far.add(t);
+    }
+
+    private static int slot(long tick, int level) {
+        return (int) ((tick / UNITS[level]) % SIZES[level]);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Окно дедупликации под конкуренцией: потоки получают пересекающиеся диапазоны update_id
+ * (как при повторной доставке от Telegram), и каждый id должен пройти ровно один раз.
+ */
+class UpdateIdWindowTest {
+    private static final int THREADS = 8;
+    private static final int IDS = 40_000;          // меньше окна: ни один id не выпадает из него
+    private static final int SPAN = IDS / 2;         // соседние потоки перекрываются наполовину и больше
+    private static final int ROUNDS = 20;
+
+    @Test
+    void eachIdPassesExactlyOnce() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                UpdateIdWindow window = new UpdateIdWindow(1 << 16);
+                AtomicIntegerArray passed = new AtomicIntegerArray(IDS + 1);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> workers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    List<Integer> ids = range(t, round);
+                    workers.add(pool.submit(() -> {
+                        start.await();
+                        for (int id : ids) {
+                            if (!window.isDuplicate(id)) passed.incrementAndGet(id);
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> w : workers) w.get();
+
+                for (int id = 1; id <= IDS; id++) {
+                    assertEquals(1, passed.get(id), "round " + round + ", update_id " + id);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Диапазоны потоков вместе покрывают 1..IDS; внутри диапазона порядок слегка перемешан.
+     */
+    private static List<Integer> range(int thread, int round) {
+        int from = 1 + (int) ((long) thread * (IDS - SPAN) / (THREADS - 1));
+        List<Integer> ids = new ArrayList<>(SPAN);
+        for (int id = from; id < from + SPAN; id++) ids.add(id);
+        Random random = new Random(31L * round + thread);
+        for (int i = 0; i + 16 <= ids.size(); i += 16) {
+            Collections.shuffle(ids.subList(i, i + 16), random);
+        }
+        return ids;
+    }
+}
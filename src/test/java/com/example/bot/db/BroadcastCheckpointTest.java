@@ -0,0 +1,80 @@
+package com.example.bot.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Отметка прогресса рассылки: chat_id групп и каналов отрицательные, с них и начинается проход.
+ */
+class BroadcastCheckpointTest {
+    private static final long[] CHATS = {-1003, -1002, -1001, 5, 7};
+
+    private Path dir;
+    private Database db;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dir = Files.createTempDirectory("broadcast-checkpoint");
+        db = new Database(dir.resolve("bot.db").toString());
+        db.init();
+        for (long chatId : CHATS) db.upsertUser(chatId, null, "user" + chatId, null, false);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        db.close();
+        try (var files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void newJobHasNoCheckpoint() {
+        db.createBroadcastJob(1, "hi", null, null, null, null, CHATS.length);
+        assertNull(db.findRunningBroadcastJobs().get(0).lastChatId());
+    }
+
+    @Test
+    void resumesAfterNegativeCheckpoint() throws InterruptedException {
+        long jobId = db.createBroadcastJob(1, "hi", null, null, null, null, CHATS.length);
+        db.checkpointBroadcast(jobId, new long[]{-1003, -1002}, new boolean[]{true, false}, 2, -1002);
+
+        BroadcastJob job = db.findRunningBroadcastJobs().get(0);
+        assertEquals(-1002L, job.lastChatId());
+        assertEquals(1, job.sent());
+        assertEquals(1, job.failed());
+        assertArrayEquals(new long[]{-1001, 5, 7}, drain(db.streamUserChatIds(job.lastChatId())));
+    }
+
+    @Test
+    void checkpointOnlyMovesForward() {
+        long jobId = db.createBroadcastJob(1, "hi", null, null, null, null, CHATS.length);
+        db.checkpointBroadcast(jobId, new long[]{-1001}, new boolean[]{true}, 1, -1001);
+        // более ранняя отметка не откатывает прогресс назад
+        db.checkpointBroadcast(jobId, new long[]{-1003}, new boolean[]{true}, 1, -1003);
+
+        assertEquals(-1001L, db.findRunningBroadcastJobs().get(0).lastChatId());
+        assertEquals(Set.of(-1003L, -1001L), db.findBroadcastDeliveredAfter(jobId, Long.MIN_VALUE));
+    }
+
+    private static long[] drain(RecipientCursor cursor) throws InterruptedException {
+        List<Long> ids = new ArrayList<>();
+        try (cursor) {
+            for (long[] page = cursor.nextPage(); page.length > 0; page = cursor.nextPage()) {
+                for (long id : page) ids.add(id);
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.bot.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Запросы напоминаний и /subs идут по индексам, а не полным сканом users.
+ * План смотрим на схеме, которую создаёт {@link Database#init}.
+ */
+class QueryPlanTest {
+    private Path dir;
+    private Connection conn;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dir = Files.createTempDirectory("query-plan");
+        Path file = dir.resolve("bot.db");
+        Database db = new Database(file.toString());
+        db.init();
+        db.close();
+        conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        conn.close();
+        try (var files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void yearRemindersUseIndex() throws Exception {
+        assertUsesIndex(Database.FIND_YEAR_ENDING_SQL, "idx_users_active_sub_end");
+    }
+
+    @Test
+    void monthRemindersUseIndex() throws Exception {
+        assertUsesIndex(Database.FIND_MONTH_ENDING_SQL, "idx_users_active_month_end");
+    }
+
+    @Test
+    void subsPagesUseIndex() throws Exception {
+        assertUsesIndex(Database.pageSubscribersSql(false, false), "idx_users_active_sub_end");
+        assertUsesIndex(Database.pageSubscribersSql(true, false), "idx_users_active_sub_end");
+        assertUsesIndex(Database.pageSubscribersSql(true, true), "idx_users_active_sub_end");
+    }
+
+    private void assertUsesIndex(String sql, String index) throws Exception {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            int params = ps.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= params; i++) ps.setLong(i, 0);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) plan.append(rs.getString("detail")).append("; ");
+            }
+        }
+        String p = plan.toString();
+        assertTrue(p.contains("USING INDEX " + index) || p.contains("USING COVERING INDEX " + index),
+                sql + " -> " + p);
+        assertFalse(p.contains("USE TEMP B-TREE"), "sort without index: " + sql + " -> " + p);
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.bot.db;
+
+import com.example.bot.db.Database.PaymentKind;
+import com.example.bot.db.Database.ReminderTransition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Захват напоминания с переходом «срок истёк» не гасит подписку, продлённую после выборки должников.
+ */
+class ReminderClaimTest {
+    private static final LocalDate START = LocalDate.of(2030, 1, 10);
+
+    private Path dir;
+    private Database db;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dir = Files.createTempDirectory("reminder-claim");
+        db = new Database(dir.resolve("bot.db").toString());
+        db.init();
+        for (long chatId = 1; chatId <= 4; chatId++) {
+            db.upsertUser(chatId, null, "user" + chatId, null, false);
+            pay(chatId, PaymentKind.YEAR, START);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        db.close();
+        try (var files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    void renewedMonthIsNotExpired() {
+        LocalDate monthEnd = START.plusMonths(1);
+        // чат 2 оплатил месяц уже после того, как попал в список истекающих
+        pay(2, PaymentKind.MONTH, monthEnd);
+
+        long[] expired = db.claimReminders("MONTH_TODAY", monthEnd, new long[]{1, 2}, ReminderTransition.EXPIRE_MONTH);
+
+        assertArrayEquals(new long[]{1}, expired);
+        assertFalse(db.getSubscriptionState(1).monthActive());
+        assertTrue(db.getSubscriptionState(2).monthActive());
+    }
+
+    @Test
+    void renewedYearIsNotExpired() {
+        LocalDate yearEnd = START.plusMonths(12);
+        pay(4, PaymentKind.YEAR, yearEnd);
+
+        long[] expired = db.claimReminders("YEAR_TODAY", yearEnd, new long[]{3, 4}, ReminderTransition.EXPIRE_YEAR);
+
+        assertArrayEquals(new long[]{3}, expired);
+        assertFalse(db.getSubscriptionState(3).yearActive());
+        assertTrue(db.getSubscriptionState(4).yearActive());
+    }
+
+    private void pay(long chatId, PaymentKind kind, LocalDate today) {
+        db.applyPayment("charge-" + chatId + "-" + kind + "-" + today, null, chatId, kind, "RUB", 100, today);
+    }
+}